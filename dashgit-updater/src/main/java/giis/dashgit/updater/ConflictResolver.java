@@ -1,11 +1,18 @@
 package giis.dashgit.updater;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import giis.portable.util.FileUtil;
 import giis.qabot.ci.clients.IConflictResolver;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -16,175 +23,365 @@ import lombok.extern.slf4j.Slf4j;
  * 
  * Requires that lines in each conflict differ only in strings that represent
  * the semantic version (more than 3 numbers are allowed).
+ * 
+ * The resolver does not keep state between calls, so that it can resolve several files in parallel.
  */
 @Slf4j
 public class ConflictResolver implements IConflictResolver {
-	private static final String VERSION_PLACEHOLDER = "{version}";
-
 	private enum State {
 		OUTSIDE_CONFLICT, LEFT, RIGHT
 	}
-	private String fileName;
-	private int unresolvedCount;
-	private State state;
 
-	private List<String> resolved; // output after resolution
+	// Opens the output, that must start with the indicated number of chars of the input
+	@FunctionalInterface
+	private interface OutputOpener {
+		Writer open(long prefixLength) throws IOException;
+	}
+
+	// State of the resolution of a single file, so that the resolver can be used by several threads
+	private class FileResolution {
+		private String fileName;
+		private int unresolvedCount;
+		private State state;
 
-	// data of a conflict
-	private String leftMarker;
-	private List<String> leftLines;
-	private String middleMarker;
-	private List<String> rightLines;
-	private String rightMarker;
+		// output after resolution, opened when the first conflict is resolved (until then, output is equal to input)
+		private OutputOpener opener;
+		private Writer output;
+		private long position; // number of chars read from the input
+
+		// data of a conflict
+		private long conflictPosition; // position of the left marker in the input
+		private StringBuilder conflict; // original text of the conflict, including markers and line terminators
+		private List<String> leftLines;
+		private List<String> leftTerminators;
+		private List<String> rightLines;
+		private String rightMarkerTerminator;
+
+		private FileResolution(String fileName, OutputOpener opener) {
+			this.fileName = fileName;
+			this.opener = opener;
+			state = State.OUTSIDE_CONFLICT;
+			reinitConflict();
+		}
+
+		private void run(BufferedReader reader) throws IOException {
+			StringBuilder line = new StringBuilder();
+			String terminator;
+			while ((terminator = readLine(reader, line)) != null) {
+				processTransition(line.toString(), terminator);
+				position += line.length() + terminator.length();
+			}
+			if (state != State.OUTSIDE_CONFLICT) // incomplete conflict at the end, keeps it as is
+				write(conflict);
+		}
+
+		private void reinitConflict() {
+			conflict = new StringBuilder();
+			leftLines = new ArrayList<>();
+			leftTerminators = new ArrayList<>();
+			rightLines = new ArrayList<>();
+			rightMarkerTerminator = null;
+		}
+	
+		private void processTransition(String line, String terminator) throws IOException {
+			if (state == State.OUTSIDE_CONFLICT && line.startsWith("<<<<<<")) {
+				conflictPosition = position;
+				conflict.append(line).append(terminator);
+				state = State.LEFT;
+			} else if (state == State.LEFT && line.startsWith("======")) {
+				conflict.append(line).append(terminator);
+				state = State.RIGHT;
+			} else if (state == State.RIGHT && line.startsWith(">>>>>>")) {
+				conflict.append(line).append(terminator);
+				rightMarkerTerminator = terminator;
+				state = State.OUTSIDE_CONFLICT;
+				boolean locallyResolved = handleConflict();
+				unresolvedCount += locallyResolved ? 0 : 1;
+				log.info(locallyResolved ? "Conflicting lines resolved" : "Conflicting lines NOT resolved");
+				reinitConflict();
+			} else {
+				processState(line, terminator);
+			}
+		}
+		private void processState(String line, String terminator) throws IOException {
+			if (state == State.OUTSIDE_CONFLICT) {
+				write(line);
+				write(terminator);
+			} else {
+				conflict.append(line).append(terminator);
+				if (state == State.LEFT) {
+					leftLines.add(line);
+					leftTerminators.add(terminator);
+				} else {
+					rightLines.add(line);
+				}
+			}
+		}
+	
+		//resolves a conflict (using the same resolution than the hunks of a three-way merge),
+		//if resolved writes the result to the output, if not writes the original conflict,
+		//returns true if conflict is resolved
+		private boolean handleConflict() throws IOException {
+			log.info("Try to resolve conflict at file {}", fileName);
+			log.debug("Conflict to resolve:\n{}", conflict);
+			List<String> resolvedLines = resolveHunk(fileName, leftLines, rightLines);
+			if (resolvedLines == null) {
+				log.info("Conflict can not be atomatically resolved");
+				write(conflict);
+				return false;
+			}
+			if (output == null)
+				output = opener.open(conflictPosition);
+			// each line keeps its terminator, but the last one, that takes the terminator that follows the conflict
+			for (int i = 0; i < resolvedLines.size(); i++) {
+				output.write(resolvedLines.get(i));
+				output.write(i == resolvedLines.size() - 1 ? rightMarkerTerminator : leftTerminators.get(i));
+			}
+			return true;
+		}
+
+		// writes to the output, if opened (until the first conflict is resolved, there is nothing to write)
+		private void write(CharSequence text) throws IOException {
+			if (output != null)
+				output.append(text);
+		}
+	}
 
 	/**
 	 * Process each line in a file with merge conflicts produced by changes in
 	 * dependency versions; for each conflict, tries to resolve it to the higher
 	 * version. The conflicting file is overwritten to reflect the resolved
 	 * conflicts. Returns the number of remaining unresolved conflicts.
+	 * 
+	 * Each conflict between markers is resolved as a hunk (resolveHunk). The file is streamed:
+	 * only the current conflict is kept in memory, the output is written to a temporary file
+	 * that replaces the original (atomic rename), keeping the line terminators.
+	 * If no conflict is resolved, the file is not written.
 	 */
-	@Override
-	@SneakyThrows
+	@SneakyThrows(IOException.class)
 	public int resolve(String fileName) {
-		this.fileName = fileName;
-		unresolvedCount = 0;
-		state = State.OUTSIDE_CONFLICT;
-		List<String> pristine = FileUtil.fileReadLines(fileName);
-		resolved = new ArrayList<>();
-		reinitConflict();
-		
-		for (String line : pristine) {
-			processTransition(line);
-		}
-		
-		String resolvedString = String.join("\n", resolved);
-		log.info("Remaining unresolved conflicts: {}", unresolvedCount);
-		log.trace("Writing file content:\n{}", resolvedString);
-		FileUtil.fileWrite(fileName, resolvedString);
-		return unresolvedCount;
-	}
-
-	private void reinitConflict() {
-		leftMarker = null;
-		middleMarker = null;
-		rightMarker = null;
-		leftLines = new ArrayList<>();
-		rightLines = new ArrayList<>();
+		Path file = Paths.get(fileName).toAbsolutePath();
+		Path temp = file.resolveSibling("." + file.getFileName() + ".resolved");
+		FileResolution resolution = new FileResolution(fileName, prefixLength -> openTemp(file, temp, prefixLength));
+		try (BufferedReader reader = newReader(file)) {
+			resolution.run(reader);
+		} catch (IOException | RuntimeException e) {
+			if (resolution.output != null)
+				resolution.output.close();
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		log.info("Remaining unresolved conflicts: {}", resolution.unresolvedCount);
+		if (resolution.output == null) {
+			log.debug("No conflicts resolved, file is not written");
+			return resolution.unresolvedCount;
+		}
+		resolution.output.close();
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return resolution.unresolvedCount;
 	}
-	
-	private void processTransition(String line) {
-		if (line.startsWith("<<<<<<")) {
-			leftMarker = line;
-			state = State.LEFT;
-		} else if (line.startsWith("======")) {
-			middleMarker = line;
-			state = State.RIGHT;
-		} else if (line.startsWith(">>>>>>")) {
-			rightMarker = line;
-			state = State.OUTSIDE_CONFLICT;
-			boolean locallyResolved = handleConflict();
-			unresolvedCount += locallyResolved ? 0 : 1;
-			log.info(locallyResolved ? "Conflicting lines resolved" : "Conflicting lines NOT resolved");
-			reinitConflict();
-		} else {
-			processState(line);
+
+	private static BufferedReader newReader(Path file) throws IOException {
+		return new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8));
+	}
+
+	// Temporary output in the same folder than the file (to allow an atomic rename), with the same permissions,
+	// that begins with the first chars of the file (that have not been changed)
+	private static Writer openTemp(Path file, Path temp, long prefixLength) throws IOException {
+		Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+		if (Files.getFileStore(file).supportsFileAttributeView(PosixFileAttributeView.class))
+			Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(file));
+		try (BufferedReader reader = newReader(file)) {
+			char[] buffer = new char[8192];
+			long remaining = prefixLength;
+			int read;
+			while (remaining > 0 && (read = reader.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+				writer.write(buffer, 0, read);
+				remaining -= read;
+			}
+		} catch (IOException | RuntimeException e) {
+			writer.close();
+			throw e;
 		}
+		return writer;
 	}
-	private void processState(String line) {
-		if (state == State.OUTSIDE_CONFLICT)
-			resolved.add(line);
-		else if (state == State.LEFT)
-			leftLines.add(line);
-		else if (state == State.RIGHT)
-			rightLines.add(line);
+
+	// Reads the next line into the buffer, returns its line terminator ("" if the last line
+	// does not end with a new line) or null at the end of the input
+	private static String readLine(BufferedReader reader, StringBuilder line) throws IOException {
+		line.setLength(0);
+		int c;
+		while ((c = reader.read()) >= 0) {
+			if (c == '\n')
+				return "\n";
+			if (c == '\r') {
+				reader.mark(1);
+				if (reader.read() == '\n')
+					return "\r\n";
+				reader.reset();
+				return "\r";
+			}
+			line.append((char) c);
+		}
+		return line.length() == 0 ? null : "";
 	}
-	
-	//resolves a conflict, if resolved adds the result to the stream, if not adds the original conflict,
-	//returns true if conflict is resolved
-	private boolean handleConflict() {
-		log.info("Try to resolve conflict at file {}", fileName);
-		log.debug("Conflict to resolve:\n{}", String.join("\n", getConflictingLines()));
-		if (leftLines.size() != rightLines.size())
-			return unresolveConflict();
-
-		List<String> resolvedLines = new ArrayList<>();
-		for (int i = 0; i < leftLines.size(); i++) {
-			String result = handleConflictingLine(i, leftLines.get(i), rightLines.get(i));
+
+	/**
+	 * Resolves the lines of a single conflict (e.g. a conflicting region of a three-way merge)
+	 * to the higher version, line by line. Returns null if any line can't be resolved.
+	 */
+	@Override
+	public List<String> resolveHunk(String fileName, List<String> ours, List<String> theirs) {
+		if (ours.size() != theirs.size())
+			return null;
+		List<String> resolvedLines = new ArrayList<>(ours.size());
+		for (int i = 0; i < ours.size(); i++) {
+			String result = handleConflictingLine(i, ours.get(i), theirs.get(i));
 			if ("".equals(result)) // if at least one can't be resolved, conflict can't be resolved
-				return unresolveConflict();
-			else
-				resolvedLines.add(result);
+				return null;
+			resolvedLines.add(result);
 		}
-		// this conflict is resolved, add the resolution to the output
 		log.debug("Conflicting lines resolved to:\n{}", String.join("\n", resolvedLines));
-		resolved.addAll(resolvedLines);
-		return true;
+		return resolvedLines;
 	}
 
 	//returns the resolved line or an empty string
 	public static String handleConflictingLine(int lineNumber, String left, String right) {
-		Pattern pattern = Pattern.compile("\\d+(\\.\\d+){2,}"); // NOSONAR is the version number of own dependency, allow 3 or more numbers
-		Matcher matcher = pattern.matcher(left);
-		String leftVersion = matcher.find() ? matcher.group(0) : "";
-		matcher = pattern.matcher(right);
-		String rightVersion = matcher.find() ? matcher.group(0) : "";
-		log.trace("Line {}. Left version number: '{}', right version number: '{}'", 
-				lineNumber, leftVersion, rightVersion);
-
+		// version number of own dependency, 3 or more numbers separated by dots
+		int leftStart = findVersion(left);
+		int rightStart = findVersion(right);
 		// must have version numbers at both sides
-		if ("".equals(leftVersion) || "".equals(rightVersion)) {
+		if (leftStart < 0 || rightStart < 0) {
 			log.trace("No semantic version numbers at both sides");
 			return "";
 		}
+		int leftEnd = versionEnd(left, leftStart);
+		int rightEnd = versionEnd(right, rightStart);
+		if (log.isTraceEnabled())
+			log.trace("Line {}. Left version number: '{}', right version number: '{}'", lineNumber,
+					left.substring(leftStart, leftEnd), right.substring(rightStart, rightEnd));
 
 		// must have the same number of components
-		if (leftVersion.split("\\.").length != rightVersion.split("\\.").length) {
+		if (countComponents(left, leftStart, leftEnd) != countComponents(right, rightStart, rightEnd)) {
 			log.trace("Versions have not the same number of components");
 			return "";
 		}
 
 		// must be equal except the versions
-		String leftMask = left.replace(leftVersion, VERSION_PLACEHOLDER);
-		String rightMask = right.replace(rightVersion, VERSION_PLACEHOLDER);
-		if (!leftMask.equals(rightMask)) {
+		if (!equalsExceptVersion(left, leftStart, leftEnd, right, rightStart, rightEnd)) {
 			log.trace("Both sides difer on more than a version number");
 			return "";
 		}
 
-		// now can resolve to the latest version
-		String latestVersion = getLatestVersion(leftVersion, rightVersion);
-		String resolvedLine = leftMask.replace(VERSION_PLACEHOLDER, latestVersion);
+		// now can resolve to the latest version: as both lines only differ in the versions,
+		// the resolved line is the line with the latest version
+		String resolvedLine = compareVersions(left, leftStart, leftEnd, right, rightStart, rightEnd) >= 0 ? left : right;
 		log.trace("Line {}. Resolved to: {}", lineNumber, resolvedLine);
 		return resolvedLine;
 	}
 
 	public static String getLatestVersion(String leftVersion, String rightVersion) {
-		// assumes equal length of components
-		String[] left = leftVersion.split("\\.");
-		String[] right = rightVersion.split("\\.");
-		for (int i = 0; i < left.length; i++)
-			if (Integer.valueOf(left[i]) > Integer.valueOf(right[i]))
-				return leftVersion;
-			else if (Integer.valueOf(left[i]) < Integer.valueOf(right[i]))
-				return rightVersion;
-		return leftVersion; // default if equal
-	}
-
-	// add the original conflict to the output
-	private boolean unresolveConflict() {
-		log.info("Conflict can not be atomatically resolved");
-		resolved.addAll(getConflictingLines());
-		return false;
-	}
-
-	private List<String> getConflictingLines() {
-		List<String> conflict = new ArrayList<>();
-		conflict.add(leftMarker);
-		conflict.addAll(leftLines);
-		conflict.add(middleMarker);
-		conflict.addAll(rightLines);
-		conflict.add(rightMarker);
-		return conflict;
+		// default to left if equal
+		return compareVersions(leftVersion, 0, leftVersion.length(), rightVersion, 0, rightVersion.length()) >= 0
+				? leftVersion
+				: rightVersion;
+	}
+
+	// Position of the first version number in a line (-1 if not found); equivalent to find the regex
+	// \d+(\.\d+){2,} but without allocations, as this is called for each line in a conflict
+	static int findVersion(String line) {
+		for (int i = 0; i < line.length(); i++)
+			if (isDigit(line, i) && !isDigit(line, i - 1) && versionEnd(line, i) >= 0)
+				return i;
+		return -1;
+	}
+
+	// End (exclusive) of the version number that starts at a position, or -1 if there is not a version number
+	static int versionEnd(String line, int start) {
+		int end = skipDigits(line, start);
+		int components = 1;
+		while (end < line.length() && line.charAt(end) == '.' && isDigit(line, end + 1)) {
+			end = skipDigits(line, end + 1);
+			components++;
+		}
+		return components >= 3 ? end : -1;
+	}
+
+	private static int countComponents(String line, int start, int end) {
+		int count = 1;
+		for (int i = start; i < end; i++)
+			if (line.charAt(i) == '.')
+				count++;
+		return count;
+	}
+
+	// Compares both lines, where each occurrence of the version of a line must match
+	// an occurrence of the version of the other line at the same place, and the rest must be equal
+	private static boolean equalsExceptVersion(String left, int leftStart, int leftEnd, 
+			String right, int rightStart, int rightEnd) {
+		int leftLength = leftEnd - leftStart;
+		int rightLength = rightEnd - rightStart;
+		int i = 0;
+		int j = 0;
+		while (i < left.length() && j < right.length()) {
+			boolean leftVersion = left.regionMatches(i, left, leftStart, leftLength);
+			boolean rightVersion = right.regionMatches(j, right, rightStart, rightLength);
+			if (leftVersion != rightVersion)
+				return false;
+			if (leftVersion) {
+				i += leftLength;
+				j += rightLength;
+			} else if (left.charAt(i++) != right.charAt(j++)) {
+				return false;
+			}
+		}
+		return i == left.length() && j == right.length();
+	}
+
+	// Compares the versions located at the indicated ranges, numerically by each component
+	// (numbers of any length, as it does not convert to int), returns <0, 0 or >0 as Comparator
+	static int compareVersions(String left, int leftStart, int leftEnd, String right, int rightStart, int rightEnd) {
+		int i = leftStart;
+		int j = rightStart;
+		while (i < leftEnd && j < rightEnd) {
+			int leftComponentEnd = skipDigits(left, i);
+			int rightComponentEnd = skipDigits(right, j);
+			int result = compareNumbers(left, i, Math.min(leftComponentEnd, leftEnd), 
+					right, j, Math.min(rightComponentEnd, rightEnd));
+			if (result != 0)
+				return result;
+			i = leftComponentEnd + 1; // skips the dot
+			j = rightComponentEnd + 1;
+		}
+		return 0;
+	}
+
+	private static int compareNumbers(String left, int leftStart, int leftEnd, String right, int rightStart, int rightEnd) {
+		while (leftStart < leftEnd - 1 && left.charAt(leftStart) == '0') // leading zeros
+			leftStart++;
+		while (rightStart < rightEnd - 1 && right.charAt(rightStart) == '0')
+			rightStart++;
+		if (leftEnd - leftStart != rightEnd - rightStart) // more digits is greater
+			return (leftEnd - leftStart) - (rightEnd - rightStart);
+		for (int k = 0; k < leftEnd - leftStart; k++) {
+			int diff = left.charAt(leftStart + k) - right.charAt(rightStart + k);
+			if (diff != 0)
+				return diff;
+		}
+		return 0;
+	}
+
+	private static int skipDigits(String line, int position) {
+		while (isDigit(line, position))
+			position++;
+		return position;
+	}
+
+	private static boolean isDigit(String line, int position) {
+		if (position < 0 || position >= line.length())
+			return false;
+		char c = line.charAt(position);
+		return c >= '0' && c <= '9';
 	}
 
 }
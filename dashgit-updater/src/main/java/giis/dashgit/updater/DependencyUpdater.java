@@ -3,15 +3,18 @@ package giis.dashgit.updater;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import giis.qabot.ci.clients.ApiMerger;
 import giis.qabot.ci.clients.GitLocal;
 import giis.qabot.ci.clients.IGitClient;
+import giis.qabot.ci.clients.InCoreMerger;
 import giis.qabot.ci.models.Branch;
 import giis.qabot.ci.models.Project;
 import giis.qabot.ci.models.PullRequest;
 import giis.qabot.core.models.Formatter;
-import giis.qabot.core.models.Util;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -27,19 +30,27 @@ public class DependencyUpdater {
 
 	// If true, creates the combined PR but does not delete branches nor merge
 	private boolean dryRun = false;
+	// If greater than zero, tries to create the combined branch using the api (without clone)
+	// when the updates change at most this number of files
+	private int apiMaxFiles = 0;
 	
 	public DependencyUpdater setDryRun(boolean value) {
 		this.dryRun = value;
 		return this;
 	}
 
+	public DependencyUpdater setApiMaxFiles(int value) {
+		this.apiMaxFiles = value;
+		return this;
+	}
+
 	/**
 	 * Creates a combined pull requests with all branches included in the indicated project
 	 * and enables the automerge of the resulting PR.
 	 * The combined changes are squashed and details on the included changes are shown in the description.
 	 */
 	public PullRequest runCreateCombinedProjectPr(IGitClient gitClient, GitLocal gitLocal, Project project,
-			String assignee, long rateLimitDelay) {
+			String assignee) {
 		log.info("**********************************************************");
 		log.info("****** Rebase and automerge a combined pull request ******");
 		log.info("Project {}", project.name());
@@ -48,27 +59,34 @@ public class DependencyUpdater {
 		log.info("**********************************************************");
 		
 		// Creates the combined update branch (only with no conflictng branches)
-		// Note that the combined branch is created using main branch as the base
-		String combinedBranch = getCombinedBranch(gitLocal, project);
+		// Note that the combined branch is created using main branch as the base.
+		// If allowed, first tries to create the branch using the api, if not possible, clones the repo
+		String title = "Combined dependency updates (" + new SimpleDateFormat("yyyy-MM-dd").format(new Date()) + ")";
+		// Branches of the included updates that are deleted when pushing the combined branch
+		List<String> pushDeleted = new ArrayList<>();
+		String combinedBranch = apiMaxFiles > 0 ? getCombinedBranchByApi(gitClient, gitLocal, project, title) : null;
+		if (combinedBranch == null)
+			combinedBranch = getCombinedBranch(gitLocal, project, title, pushDeleted);
 		if ("".equals(combinedBranch)) { // no hay actualizaciones que combinar
 			log.warn("There are no updates to merge (or all updates have merge conflicts)");
 			return null;
 		}
-		// Adds an empty commit to change the title of the run/pipeline (if not, takes the comment of last commit)
-		String title = "Combined dependency updates (" + new SimpleDateFormat("yyyy-MM-dd").format(new Date()) + ")";
-		gitLocal.commit(title); // git client allows empty commits by default
-		log.info("Combined branch created in local repo, name: {}", combinedBranch);
-		gitLocal.push(false);
 
 		// Creates the combined update PR.
 		// Note that target branch is taken from the first PR, and it should be the main branch
 		Formatter formatter = new Formatter();
 		PullRequest refPr = project.branches().get(0).pullRequest().assignee(assignee);
-		PullRequest pr = createCombinedPullRequest(gitClient, formatter, project, refPr, combinedBranch, title);
+		PullRequest pr;
+		try {
+			pr = createCombinedPullRequest(gitClient, formatter, project, refPr, combinedBranch, title);
+		} catch (Exception e) { // NOSONAR the branches deleted by the push must be kept if the PR is not created
+			restoreBranches(gitLocal, project, pushDeleted);
+			throw e;
+		}
 		log.info("Combined pull request created: {}", pr.title());
 
 		// Cleanup (branches not included in the combined PR) and set comments
-		finishCombinedPullRequest(gitClient, formatter, project, pr, rateLimitDelay);
+		finishCombinedPullRequest(gitClient, formatter, project, pr, pushDeleted);
 		log.info("****** End rebase and automerge a combined pull request ******");
 		log.info("**************************************************************");
 		return pr;
@@ -78,28 +96,197 @@ public class DependencyUpdater {
 	 * Creates a local repository branch with all non conflicting changes,
 	 * returning the branch name (empty if no branch has been included)
 	 */
-	private String getCombinedBranch(GitLocal gitLocal, Project project) {
+	private String getCombinedBranch(GitLocal gitLocal, Project project, String title, List<String> pushDeleted) {
 		log.info("*** Create Combined Branch");
 		String repoName = project.name();
-		gitLocal.cloneRepository(repoName);
+		// If targeted fetch is set, only the target branch (main) and the commits to merge are cloned
+		List<String> shas = new ArrayList<>();
+		for (Branch branch : project.branches())
+			shas.add(branch.pullRequest().sha());
+		gitLocal.cloneRepository(repoName, project.branches().get(0).pullRequest().targetBranch(), shas);
+		// If the clone is shallow, history must reach the merge bases of all updates
+		gitLocal.deepenToMergeBases(shas);
+		// If sparse checkout is set, only the files changed by the updates are written in the work tree
+		gitLocal.checkoutSparse(shas);
 		// New branch to add to the combined PR
 		String combinedBranch = COMBINED_BRANCH_PREFIX + "-" + gitLocal.getTimestamp();
 		gitLocal.checkout(combinedBranch, true);
+		// If the updates change different files, the combined branch is created with a single commit
+		if (!gitLocal.isMergeCommits() && gitLocal.mergeDisjoint(shas, title)) {
+			for (Branch branch : project.branches())
+				setMergeStatus(branch, true);
+			log.info("Combined branch created in local repo from disjoint changes, name: {}", combinedBranch);
+			publish(gitLocal, project, pushDeleted);
+			return combinedBranch;
+		}
+		// Trial merges (in parallel) of each update with the base, to merge only the updates that can be applied
+		List<Branch> applicable = getApplicableBranches(gitLocal, project.branches(), shas);
+		int successCount;
+		if (gitLocal.isSingleCommit())
+			successCount = mergeSingle(gitLocal, applicable, title);
+		else
+			successCount = gitLocal.isTreeMerge() ? mergeTree(gitLocal, applicable) : mergeEach(gitLocal, applicable);
+		if (successCount == 0)
+			return "";
+		// Adds an empty commit to change the title of the run/pipeline (if not, takes the comment of last commit)
+		if (!gitLocal.isSingleCommit()) // the single commit already has the title
+			gitLocal.commit(title); // git client allows empty commits by default
+		log.info("Combined branch created in local repo, name: {}", combinedBranch);
+		publish(gitLocal, project, pushDeleted);
+		return combinedBranch;
+	}
+
+	// Pushes the combined branch. If set in the local repo (and not dry run), the branches of the included updates
+	// are deleted in the same push and added to pushDeleted, the branches that can't be deleted
+	// will be deleted using the api
+	private void publish(GitLocal gitLocal, Project project, List<String> pushDeleted) {
+		if (!gitLocal.isPushDeletes() || dryRun) {
+			gitLocal.push(false);
+			return;
+		}
+		List<String> branches = new ArrayList<>();
+		for (Branch branch : project.branches())
+			if (Boolean.TRUE == branch.pullRequest().canBeMerged())
+				branches.add(branch.pullRequest().sourceBranch());
+		branches.removeAll(gitLocal.pushAndDelete(branches));
+		pushDeleted.addAll(branches);
+		log.info("Combined branch pushed, deleted branches: {}", pushDeleted);
+	}
+
+	// Pushes again the branches deleted by publish, used when the combined PR can't be created
+	private void restoreBranches(GitLocal gitLocal, Project project, List<String> pushDeleted) {
+		Map<String, String> branches = new LinkedHashMap<>();
+		for (Branch branch : project.branches())
+			if (pushDeleted.contains(branch.pullRequest().sourceBranch()))
+				branches.put(branch.pullRequest().sourceBranch(), branch.pullRequest().sha());
+		if (branches.isEmpty())
+			return;
+		log.warn("Combined pull request not created, restore deleted branches: {}", branches.keySet());
+		try {
+			gitLocal.restoreBranches(branches);
+		} catch (Exception e) { // NOSONAR keeps the exception that caused the restore
+			log.error("Can't restore deleted branches: {}", e.toString());
+		}
+	}
+
+	// Merges each update after the previous one, returns the number of updates included
+	private int mergeEach(GitLocal gitLocal, List<Branch> branches) {
 		int successCount = 0;
 		int branchCount = 1;
-		// Adds each change (note that QABot used Cherry Pick, here we use merge with conflict resolver)
-		for (Branch branch : project.branches()) {
+		// Adds each change (note that QABot used Cherry Pick, here we use merge with conflict resolver),
+		// updates that conflict with many others are merged last to include as many updates as possible
+		for (Branch branch : getMergeOrder(gitLocal, branches)) {
 			PullRequest pr = branch.pullRequest();
 			log.info("Combine pull request: {}", pr.title());
-			String message = pr.title() + " [" + (branchCount++) + "/" + project.branches().size() + "]";
+			String message = pr.title() + " [" + (branchCount++) + "/" + branches.size() + "]";
 			boolean success = gitLocal.merge(pr.sha(), message, new ConflictResolver());
-			pr.canBeMerged(success);
-			pr.cantBeMergedReason(success ? "" : "cannot be merged");
-			branch.buildSummary(); // propagates the status (needed in dashgit?)
+			setMergeStatus(branch, success);
 			successCount += success ? 1 : 0;
 		}
-		// Push is not done here, the calling method will do it if there have been any success
-		return successCount > 0 ? combinedBranch : "";
+		return successCount;
+	}
+
+	// Merges all updates in a single commit with the title of the combined PR, returns the number of updates included
+	private int mergeSingle(GitLocal gitLocal, List<Branch> branches, String title) {
+		List<Branch> ordered = getMergeOrder(gitLocal, branches);
+		List<String> shas = new ArrayList<>();
+		for (Branch branch : ordered)
+			shas.add(branch.pullRequest().sha());
+		List<Boolean> results = gitLocal.mergeSingle(shas, title, new ConflictResolver());
+		int successCount = 0;
+		for (int i = 0; i < ordered.size(); i++) {
+			log.info("Combine pull request: {}, merged: {}", ordered.get(i).pullRequest().title(), results.get(i));
+			setMergeStatus(ordered.get(i), results.get(i));
+			successCount += results.get(i) ? 1 : 0;
+		}
+		return successCount;
+	}
+
+	private void setMergeStatus(Branch branch, boolean success) {
+		branch.pullRequest().canBeMerged(success);
+		branch.pullRequest().cantBeMergedReason(success ? "" : "cannot be merged");
+		branch.buildSummary(); // propagates the status (needed in dashgit?)
+	}
+
+	// Updates that are clean or auto-resolvable with respect to the base, the rest are set as not mergeable
+	private List<Branch> getApplicableBranches(GitLocal gitLocal, List<Branch> branches, List<String> shas) {
+		List<InCoreMerger.Status> statuses = gitLocal.tryMerges(shas, new ConflictResolver());
+		List<Branch> applicable = new ArrayList<>();
+		for (int i = 0; i < branches.size(); i++) {
+			PullRequest pr = branches.get(i).pullRequest();
+			log.info("Trial merge of pull request: {}, status: {}", pr.title(), statuses.get(i));
+			if (statuses.get(i) == InCoreMerger.Status.CONFLICTING) {
+				setMergeStatus(branches.get(i), false);
+			} else {
+				applicable.add(branches.get(i));
+			}
+		}
+		return applicable;
+	}
+
+	// Merges all updates at once (tree reduction), returns the number of updates included
+	private int mergeTree(GitLocal gitLocal, List<Branch> branches) {
+		List<String> shas = new ArrayList<>();
+		List<String> titles = new ArrayList<>();
+		for (Branch branch : branches) {
+			shas.add(branch.pullRequest().sha());
+			titles.add(branch.pullRequest().title());
+		}
+		Map<String, Integer> dropped = gitLocal.mergeTree(shas, titles, new ConflictResolver());
+		for (Branch branch : branches) {
+			PullRequest pr = branch.pullRequest();
+			Integer level = dropped.get(pr.sha());
+			if (level != null)
+				log.info("Pull request dropped at level {} of the tree merge: {}", level, pr.title());
+			setMergeStatus(branch, level == null);
+		}
+		return branches.size() - dropped.size();
+	}
+
+	private List<Branch> getMergeOrder(GitLocal gitLocal, List<Branch> branches) {
+		List<Map<String, List<int[]>>> changes = new ArrayList<>();
+		for (Branch branch : branches)
+			changes.add(gitLocal.getChangedRegions(branch.pullRequest().sha()));
+		List<Branch> ordered = new ArrayList<>();
+		for (int i : new MergePlanner().plan(changes))
+			ordered.add(branches.get(i));
+		return ordered;
+	}
+
+	/**
+	 * Creates the branch with all non conflicting changes as getCombinedBranch, but without cloning the repo:
+	 * files are read and merged through the api and the branch is created with a single commit
+	 * (the title of the run/pipeline). Returns null if the changes can't be merged using the api
+	 */
+	private String getCombinedBranchByApi(IGitClient gitClient, GitLocal gitLocal, Project project, String title) {
+		log.info("*** Create Combined Branch using the api");
+		ApiMerger merger = new ApiMerger(gitClient, project.name(), project.branches().get(0).pullRequest().targetBranch())
+				.setMaxFiles(apiMaxFiles);
+		// Merge status is set after all merges, as the whole process must be repeated if any can't be merged by the api
+		List<Boolean> results = new ArrayList<>();
+		for (Branch branch : project.branches()) {
+			PullRequest pr = branch.pullRequest();
+			log.info("Combine pull request: {}", pr.title());
+			Boolean success = merger.merge(pr.sha(), gitLocal.getResolver(new ConflictResolver()));
+			if (success == null) {
+				log.warn("Can't create the combined branch using the api, the repository will be cloned");
+				return null;
+			}
+			results.add(success);
+		}
+		int successCount = 0;
+		for (int i = 0; i < results.size(); i++) {
+			Branch branch = project.branches().get(i);
+			boolean success = results.get(i);
+			setMergeStatus(branch, success);
+			successCount += success ? 1 : 0;
+		}
+		if (successCount == 0)
+			return "";
+		String combinedBranch = COMBINED_BRANCH_PREFIX + "-" + gitLocal.getTimestamp();
+		merger.commit(combinedBranch, title);
+		log.info("Combined branch created using the api, name: {}", combinedBranch);
+		return combinedBranch;
 	}
 
 	private PullRequest createCombinedPullRequest(IGitClient gitClient, Formatter formatter, Project project,
@@ -131,22 +318,30 @@ public class DependencyUpdater {
 	}
 
 	private void finishCombinedPullRequest(IGitClient gitClient, Formatter formatter, Project project,
-			PullRequest newPr, long rateLimitDelay) {
+			PullRequest newPr, List<String> pushDeleted) {
 		log.info("*** Finish Combined Pull Request");
+		// All comments are added at once (using the minimum number of requests) before removing branches
+		List<PullRequest> prs = new ArrayList<>();
+		List<String> comments = new ArrayList<>();
 		for (Branch branch : project.branches()) {
 			PullRequest pr = branch.pullRequest();
-			if (Boolean.TRUE == pr.canBeMerged()) { // no deberia ser nulo al haberse determinado ya mergeabilty
-				gitClient.addPullRequestCommment(pr, "This has been included in the combined pull request "
+			prs.add(pr);
+			if (Boolean.TRUE == pr.canBeMerged()) // no deberia ser nulo al haberse determinado ya mergeabilty
+				comments.add("This has been included in the combined pull request "
 						+ formatter.url(newPr.title(), newPr.htmlUrl()));
-				log.info("Remove branch: {}, project: {}, dryRun: {}", newPr.sourceBranch(), newPr.repoName(), dryRun);
-				if (!dryRun)
-					gitClient.deleteBranch(pr.fullName(), pr.sourceBranch());
-			} else {
-				gitClient.addPullRequestCommment(pr, "@" + gitClient.getUsername() 
+			else
+				comments.add("@" + gitClient.getUsername() 
 						+ " This has not been included in the combined pull request "
 						+ formatter.url(newPr.title(), newPr.htmlUrl()) + " because of potential merge conflicts");
+		}
+		gitClient.addPullRequestComments(prs, comments);
+		for (Branch branch : project.branches()) {
+			PullRequest pr = branch.pullRequest();
+			if (Boolean.TRUE == pr.canBeMerged()) {
+				log.info("Remove branch: {}, project: {}, dryRun: {}", pr.sourceBranch(), newPr.repoName(), dryRun);
+				if (!dryRun && !pushDeleted.contains(pr.sourceBranch())) // not deleted when pushing
+					gitClient.deleteBranch(pr.fullName(), pr.sourceBranch());
 			}
-			Util.delay(rateLimitDelay); // separa acciones para evitar secondary rate limits en github
 		}
 	}
 
@@ -19,20 +19,29 @@ public class DependencyUpdaterFacade {
 	/**
 	 * Create a single combined pull request and merges it into the main branch
 	 * given the repository/project name and the internal ids of all PRs to be
-	 * merged. If dryRun is set, the PR is not merged and the original update branches are no deleted
+	 * merged. If dryRun is set, the PR is not merged and the original update branches are no deleted.
+	 * Requests to the provider are paced by the rate limiter of the http transport.
 	 */
 	public PullRequest mergeCombinedPullRequest(IGitClient gitClient, GitLocal gitLocal, 
-			String projectName, long[] prIds, String assignee, int rateLimitDelay, boolean dryRun) {
+			String projectName, long[] prIds, String assignee, boolean dryRun) {
+		return mergeCombinedPullRequest(gitClient, gitLocal, projectName, prIds, assignee, dryRun, 0);
+	}
+
+	/**
+	 * Same as before, but if apiMaxFiles is greater than zero, tries to create the combined branch
+	 * using the api (without cloning the repository) when the PRs change at most this number of files
+	 */
+	public PullRequest mergeCombinedPullRequest(IGitClient gitClient, GitLocal gitLocal,
+			String projectName, long[] prIds, String assignee, boolean dryRun, int apiMaxFiles) {
 		Project project = getProjectWithPullRequests(gitClient, projectName, prIds);
-		DependencyUpdater updater = new DependencyUpdater().setDryRun(dryRun);
-		return updater.runCreateCombinedProjectPr(gitClient, gitLocal, project, assignee, rateLimitDelay);
+		DependencyUpdater updater = new DependencyUpdater().setDryRun(dryRun).setApiMaxFiles(apiMaxFiles);
+		return updater.runCreateCombinedProjectPr(gitClient, gitLocal, project, assignee);
 	}
 
 	private Project getProjectWithPullRequests(IGitClient gitClient, String projectName, long[] prIds) {
 		Project project = new Project();
 		project.name(projectName);
-		for (long prId : prIds) {
-			PullRequest pr = gitClient.getPullRequest(projectName, prId);
+		for (PullRequest pr : gitClient.getPullRequests(projectName, prIds)) {
 			Branch branch = (Branch) new Branch().pullRequest(pr).name(pr.sourceBranch());
 			project.addItem(branch);
 		}
@@ -0,0 +1,88 @@
+package giis.dashgit.updater;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Plans the order to merge the updates into the combined branch, to include as many updates as possible.
+ * When an update conflicts with others, merging it first may exclude all of them, so that
+ * the conflicts between each pair of updates are estimated from the regions that they change
+ * (same file and overlapping or adjacent line ranges of the merge base, as git merge does).
+ *
+ * The plan is a maximal set of updates without conflicts between them (chosen greedily, first the updates
+ * with less conflicts), followed by the rest of updates, that will be merged only if the conflicts can be resolved.
+ * Updates keep their original order inside each group.
+ */
+@Slf4j
+public class MergePlanner {
+
+	/**
+	 * Returns the indexes of the updates in the order that they should be merged,
+	 * given the regions changed by each update (for each file, the line ranges [begin, end) of the merge base)
+	 */
+	public List<Integer> plan(List<Map<String, List<int[]>>> changes) {
+		int size = changes.size();
+		boolean[][] conflicts = new boolean[size][size];
+		int[] degree = new int[size];
+		for (int i = 0; i < size; i++)
+			for (int j = i + 1; j < size; j++)
+				if (conflict(changes.get(i), changes.get(j))) {
+					log.debug("Updates {} and {} change the same regions", i, j);
+					conflicts[i][j] = conflicts[j][i] = true;
+					degree[i]++;
+					degree[j]++;
+				}
+		// Greedy maximal independent set: takes the update with less conflicts among the remaining,
+		// the updates that conflict with it are deferred
+		boolean[] selected = new boolean[size];
+		boolean[] removed = new boolean[size];
+		int remaining = size;
+		while (remaining > 0) {
+			int next = -1;
+			for (int i = 0; i < size; i++)
+				if (!removed[i] && (next < 0 || degree[i] < degree[next]))
+					next = i;
+			selected[next] = true;
+			remove(next, removed, conflicts, degree);
+			remaining--;
+			for (int i = 0; i < size; i++)
+				if (!removed[i] && conflicts[next][i]) {
+					remove(i, removed, conflicts, degree);
+					remaining--;
+				}
+		}
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < size; i++)
+			if (selected[i])
+				order.add(i);
+		for (int i = 0; i < size; i++)
+			if (!selected[i])
+				order.add(i);
+		log.info("Merge order of the updates: {}", order);
+		return order;
+	}
+
+	// Removes an update from the remaining, updating the conflicts of the remaining updates
+	private void remove(int update, boolean[] removed, boolean[][] conflicts, int[] degree) {
+		removed[update] = true;
+		for (int i = 0; i < removed.length; i++)
+			if (conflicts[update][i])
+				degree[i]--;
+	}
+
+	private boolean conflict(Map<String, List<int[]>> first, Map<String, List<int[]>> second) {
+		for (Map.Entry<String, List<int[]>> file : first.entrySet()) {
+			List<int[]> other = second.get(file.getKey());
+			if (other != null)
+				for (int[] range : file.getValue())
+					for (int[] otherRange : other)
+						if (range[0] <= otherRange[1] && otherRange[0] <= range[1]) // overlapping or adjacent
+							return true;
+		}
+		return false;
+	}
+
+}
@@ -1,15 +1,32 @@
 package giis.dashgit.updater;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import giis.dashgit.updater.UpdaterModel.Provider;
+import giis.dashgit.updater.UpdaterModel.Updates;
 import giis.portable.util.FileUtil;
+import giis.qabot.ci.clients.AutoMergeScheduler;
 import giis.qabot.ci.clients.GitLocal;
 import giis.qabot.ci.clients.GithubGitClient;
 import giis.qabot.ci.clients.IGitClient;
+import giis.qabot.ci.clients.MirrorCache;
+import giis.qabot.ci.clients.ResolutionCache;
+import giis.qabot.core.clients.HttpTransport;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
@@ -22,11 +39,14 @@ import lombok.extern.slf4j.Slf4j;
  * project, that invokes this controller.
  * 
  * This controller gets the model represented by the json file and performs all
- * updates by creating a pull request with automerge for each repository.
+ * updates by creating a pull request with automerge for each repository
+ * (optionally, running several repositories at the same time).
  * Finally, cleans up the branch.
  */
 @Slf4j
 public class UpdaterController {
+	private MirrorCache mirrorCache; // shared by all updates, if configured
+	private ResolutionCache resolutionCache; // shared by all updates, if configured
 
 	public void run(String fileName) {
 		String json = FileUtil.fileRead(fileName);
@@ -41,27 +61,60 @@ public class UpdaterController {
 			System.exit(1);
 	}
 
+	/**
+	 * Runs the updates of all repositories. Each repository is updated in its own task,
+	 * at most the number of repositories indicated by the model concurrency are updated at
+	 * the same time (and no more than the concurrency of each provider, if set).
+	 * Errors are isolated by repository, returns the number of failed updates
+	 * plus the number of combined pull requests whose auto-merge could not be set.
+	 */
 	public int runAllUpdates(UpdaterModel model) {
 		int updateCount = 0;
-		int errorCount = 0;
 		log.info("*** Running UpdateModel, summary: \n{}", model.toSummaryString());
-		boolean dryRun = model.getUpdates().isDryRun();
+		Updates options = model.getUpdates();
+		mirrorCache = "".equals(options.getMirrorCacheDir()) ? null
+				: new MirrorCache(options.getMirrorCacheDir(), options.getMirrorCacheMaxSize() * 1024 * 1024);
+		resolutionCache = "".equals(options.getResolutionCacheFile()) ? null
+				: new ResolutionCache(options.getResolutionCacheFile(), options.getResolutionCacheMaxEntries());
+		int concurrency = Math.max(1, model.getUpdates().getConcurrency());
+		// The global limit is shared by all providers, each provider has its own pool to enforce its limit
+		Semaphore globalLimit = new Semaphore(concurrency, true);
+		List<ExecutorService> executors = new ArrayList<>();
+		List<Future<String>> results = new ArrayList<>();
 		for (Entry<String, Provider> provider : model.getUpdates().getProviders().entrySet()) {
 			String providerType = provider.getValue().getProviderType();
 			String urlValue = provider.getValue().getUrlValue();
 			String userValue = provider.getValue().getUserValue();
 			String tokenSecret = provider.getValue().getTokenSecret();
 			String userEmail = provider.getValue().getUserEmail();
-			log.info("*** Starting provider: {} - {}, urlValue: {}", provider.getKey(), providerType, urlValue);
+			int providerConcurrency = provider.getValue().getConcurrency() > 0
+					? Math.min(provider.getValue().getConcurrency(), concurrency) : concurrency;
+			log.info("*** Starting provider: {} - {}, urlValue: {}, concurrency: {}", provider.getKey(), providerType,
+					urlValue, providerConcurrency);
+			ExecutorService executor = Executors.newFixedThreadPool(providerConcurrency, getThreadFactory(provider.getKey()));
+			executors.add(executor);
 			for (Entry<String, String[]> repository : provider.getValue().getRepositories().entrySet()) {
 				updateCount++;
 				String repo = repository.getKey();
-				log.info("*** Starting repository: {} , pulls: {}", repo, Arrays.toString(repository.getValue()));
-				String error = runSingleUpdate(providerType, urlValue, userValue, userEmail, tokenSecret, repo, repository.getValue(), dryRun);
-				if (!"".equals(error))
-					errorCount++;
+				results.add(executor.submit(() -> runLimitedUpdate(globalLimit, providerType, urlValue, userValue,
+						userEmail, tokenSecret, repo, repository.getValue(), options)));
 			}
 		}
+		for (ExecutorService executor : executors)
+			executor.shutdown();
+		int errorCount = 0;
+		for (Future<String> result : results)
+			if (!"".equals(getUpdateResult(result)))
+				errorCount++;
+		// auto-merge of the combined pull requests is set asynchronously, waits for all of them
+		// (at most until the timeout of the last one) and counts those not set as errors
+		AutoMergeScheduler scheduler = AutoMergeScheduler.getShared();
+		long autoMergeDeadline = System.currentTimeMillis() + scheduler.getAwaitTime();
+		int autoMergeErrorCount = 0;
+		for (CompletableFuture<Boolean> autoMerge : scheduler.takeScheduled())
+			if (!"".equals(getAutoMergeResult(autoMerge, autoMergeDeadline)))
+				autoMergeErrorCount++;
+
 		// Summarize the results to show in the GitHub Actions log
 		log.info("********* END OF UPDATE *********");
 		log.info("Total of successful updates: {}", updateCount - errorCount);
@@ -70,13 +123,71 @@ public class UpdaterController {
 		// the pull request builds
 		if (errorCount > 0)
 			log.info("Total of unsuccessful updates: {}", errorCount);
+		if (autoMergeErrorCount > 0)
+			log.info("Total of automerges not set: {}", autoMergeErrorCount);
+		log.debug("Http connection pools (to tune the max connections):{}", HttpTransport.getAllPoolStats());
+		if (resolutionCache != null) {
+			log.info("Conflict resolution cache, {}", resolutionCache);
+			resolutionCache.save();
+		}
+
+		return errorCount + autoMergeErrorCount;
+	}
 
-		return errorCount;
+	private String runLimitedUpdate(Semaphore globalLimit, String providerType, String urlValue, // NOSONAR
+			String userValue, String userEmail, String tokenSecret, 
+			String repo, String[] pullIds, Updates options) throws InterruptedException {
+		globalLimit.acquire();
+		try {
+			log.info("*** Starting repository: {} , pulls: {}", repo, Arrays.toString(pullIds));
+			return runSingleUpdate(providerType, urlValue, userValue, userEmail, tokenSecret, repo, pullIds, options);
+		} finally {
+			globalLimit.release();
+		}
+	}
+
+	// Any unexpected exception is counted as an error of this repository only
+	private String getUpdateResult(Future<String> result) {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.error("Interrupted while waiting for the update", e);
+			return e.toString();
+		} catch (ExecutionException e) {
+			log.error("Can not run the update", e.getCause());
+			return e.getCause().toString();
+		}
+	}
+
+	// As the update results, an auto-merge aborted, failed or not completed before the deadline is an error
+	// (the scheduler logs the pull request of the auto-merges aborted or timed out)
+	private String getAutoMergeResult(Future<Boolean> result, long deadline) {
+		try {
+			long timeout = Math.max(0, deadline - System.currentTimeMillis());
+			return Boolean.TRUE.equals(result.get(timeout, TimeUnit.MILLISECONDS)) ? "" : "automerge not set";
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.error("Interrupted while waiting for the automerge", e);
+			return e.toString();
+		} catch (ExecutionException e) {
+			log.error("Can not set the automerge", e.getCause());
+			return e.getCause().toString();
+		} catch (TimeoutException e) {
+			log.error("Automerge not completed before the timeout");
+			return e.toString();
+		}
+	}
+
+	// Names the threads after the provider to identify the update in the log
+	private ThreadFactory getThreadFactory(String providerKey) {
+		AtomicInteger threadCount = new AtomicInteger();
+		return runnable -> new Thread(runnable, "update-" + providerKey + "-" + threadCount.incrementAndGet());
 	}
 
 	private String runSingleUpdate(String providerType, String urlValue, // NOSONAR
 			String userValue, String userEmail, String tokenSecret, 
-			String repo, String[] pullIds, boolean dryRun) {
+			String repo, String[] pullIds, Updates options) {
 		log.info("**** Run update: {} {} {} {}", urlValue, userValue, tokenSecret, repo);
 		long[] pulls = new long[pullIds.length];
 		for (int i = 0; i < pulls.length; i++)
@@ -90,9 +201,17 @@ public class UpdaterController {
 		}
 
 		IGitClient gitClient = new DependencyUpdaterFacade().getGitClient(providerType, urlValue, userValue, token);
-		GitLocal gitLocal = new GitLocal("target", urlValue, userValue, userEmail, token);
-		try {
-			new DependencyUpdaterFacade().mergeCombinedPullRequest(gitClient, gitLocal, repo, pulls, userValue, 2000, dryRun);
+		// closing the local repository releases the mirror (if any) for eviction
+		try (GitLocal gitLocal = new GitLocal("target", urlValue, userValue, userEmail, token)
+				.setInCore(options.isInCoreMerge()).setTreeMerge(options.isTreeMerge())
+				.setMergeCommits(options.isMergeCommits())
+				.setSingleCommit(options.isSingleCommit()).setSquash(options.isSquashCommit())
+				.setPushDeletes(options.isPushDeletes()).setMirrorCache(mirrorCache).setCloneDepth(options.getCloneDepth())
+				.setTargetedFetch(options.isTargetedFetch())
+				.setSparseCheckout(options.isSparseCheckout())
+				.setResolutionCache(resolutionCache)) {
+			new DependencyUpdaterFacade().mergeCombinedPullRequest(gitClient, gitLocal, repo, pulls, userValue,
+					options.isDryRun(), options.getApiMaxFiles());
 			return "";
 		} catch (Exception e) {
 			log.error("Can not create combined pull request", e);
@@ -12,7 +12,11 @@ import lombok.experimental.Accessors;
 
 /**
  * This is the model that the UI creates to indicate the combined updates to merge.
- * Keep in sync with the model creation from javascript in dashgit-web/app/WiServices.js
+ * Keep in sync with the model creation from javascript in dashgit-web/app/WiControllerUpdate.js (getModel).
+ *
+ * The options that tune how the combined branches are built (from concurrency to resolutionCacheMaxEntries,
+ * and the concurrency of each provider) are config-only: the UI does not send them, so that the defaults
+ * (same behaviour as before these options) are used unless they are set in the update json file.
  */
 @Accessors(chain = true)
 @Getter
@@ -27,6 +31,41 @@ public class UpdaterModel {
 		String managerRepoName = "";
 		String updateManagerBranch = "";
 		boolean dryRun = false;
+		// Max number of repositories that are updated at the same time (1 runs all updates sequentially)
+		int concurrency = 1;
+		// Builds the combined branch in memory in a bare repository (no checkout nor work tree)
+		boolean inCoreMerge = false;
+		// Merges the updates pairwise in a binary tree (in parallel and in memory) instead of one after another,
+		// for repositories with many updates
+		boolean treeMerge = false;
+		// Keeps a merge commit for each update; if false and the updates change different files,
+		// the combined branch is created with a single commit
+		boolean mergeCommits = true;
+		// Combines the updates in a single commit (whose parents are the main branch and all merged updates)
+		// instead of a chain of merge commits (treeMerge is not used)
+		boolean singleCommit = false;
+		// As singleCommit, but the commit only has the main branch as parent (squashed updates)
+		boolean squashCommit = false;
+		// Deletes the branches of the included updates in the same atomic push that creates the combined branch
+		// (the branches that can't be deleted by the push are deleted using the api)
+		boolean pushDeletes = false;
+		// Folder to keep mirrors of the repositories between runs, to clone only the changes (empty for no cache)
+		String mirrorCacheDir = "";
+		// Max size (MB) of the mirror cache, the least recently used mirrors are evicted (0 for no limit)
+		long mirrorCacheMaxSize = 0;
+		// Depth of the history to clone, deepened as needed to reach the merge bases (0 for full clone)
+		int cloneDepth = 0;
+		// Clones only the target branch and the commits of the updates instead of all branches and tags
+		boolean targetedFetch = false;
+		// Writes in the work tree only the files changed by the updates (not used with inCoreMerge)
+		boolean sparseCheckout = false;
+		// Creates the combined branch using the api (without clone) if the updates change at most
+		// this number of files, if not, clones the repository (0 to always clone)
+		int apiMaxFiles = 0;
+		// File to keep the resolutions of conflicts between runs, to apply them when found again (empty for no cache)
+		String resolutionCacheFile = "";
+		// Max number of resolutions kept in the cache, the least recently used are evicted
+		int resolutionCacheMaxEntries = 1000;
 		Map<String, Provider> providers = new HashMap<>();
 	}
 
@@ -38,6 +77,8 @@ public class UpdaterModel {
 		String userValue = "";
 		String tokenSecret = "";
 		String userEmail = "";
+		// Max number of repositories of this provider updated at the same time (0 to use only the global limit)
+		int concurrency = 0;
 		Map<String, String[]> repositories = new HashMap<>();
 	}
 
@@ -45,11 +86,24 @@ public class UpdaterModel {
 		StringBuilder sb = new StringBuilder();
 		Updates upd = this.getUpdates();
 		sb.append("ManagerRepoName: ").append(upd.getManagerRepoName()).append(", DryRun: ")
-				.append(upd.isDryRun());
+				.append(upd.isDryRun()).append(", Concurrency: ").append(upd.getConcurrency())
+				.append(", InCoreMerge: ").append(upd.isInCoreMerge())
+				.append(", TreeMerge: ").append(upd.isTreeMerge())
+				.append(", MergeCommits: ").append(upd.isMergeCommits())
+				.append(", SingleCommit: ").append(upd.isSingleCommit())
+				.append(", SquashCommit: ").append(upd.isSquashCommit())
+				.append(", PushDeletes: ").append(upd.isPushDeletes())
+				.append(", MirrorCacheDir: ").append(upd.getMirrorCacheDir())
+				.append(", CloneDepth: ").append(upd.getCloneDepth())
+				.append(", TargetedFetch: ").append(upd.isTargetedFetch())
+				.append(", SparseCheckout: ").append(upd.isSparseCheckout())
+				.append(", ApiMaxFiles: ").append(upd.getApiMaxFiles())
+				.append(", ResolutionCacheFile: ").append(upd.getResolutionCacheFile());
 		for (Entry<String, Provider> provider : upd.getProviders().entrySet()) {
 			sb.append("\nProvider id: ").append(provider.getKey())
 					.append(", type: ").append(provider.getValue().getProviderType())
-					.append(", url: ").append(provider.getValue().getUrlValue());
+					.append(", url: ").append(provider.getValue().getUrlValue())
+					.append(", concurrency: ").append(provider.getValue().getConcurrency());
 			for (Entry<String, String[]> repository : provider.getValue().getRepositories().entrySet()) {
 				sb.append("\n  Repository: ").append(repository.getKey()).append(", Pulls: ")
 						.append(Arrays.toString(repository.getValue()));
@@ -0,0 +1,171 @@
+package giis.qabot.ci.clients;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.merge.MergeAlgorithm;
+import org.eclipse.jgit.merge.MergeResult;
+
+import giis.qabot.ci.models.CommitDiff;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Merge of commits into a branch without cloning the repository: the content of the
+ * files changed by each commit is read through the api of the IGitClient, merged in memory
+ * (three-way merge with the merge base, resolving conflicts with an IConflictResolver)
+ * and the result is written as a single commit on a new branch.
+ * Intended for updates that change a few small text files: if a commit changes too many files,
+ * binary files or the api can't compare it, the merge can't be done (the caller should clone).
+ */
+@Slf4j
+public class ApiMerger {
+	private static final int MAX_FILE_SIZE = 1024 * 1024; // the content api of github does not return larger files
+
+	private IGitClient client;
+	private String projectId;
+	private String headSha; // commit of the branch where merges are done
+	private int maxFiles = 20; // max number of files changed by all merged commits
+	// Content of the files changed by the merges (null if deleted), files of the branch are read lazily
+	private Map<String, String> merged = new LinkedHashMap<>();
+	private Map<String, String> headContent = new HashMap<>();
+
+	public ApiMerger(IGitClient client, String projectId, String branch) {
+		this.client = client;
+		this.projectId = projectId;
+		this.headSha = client.getBranchSha(projectId, branch);
+	}
+
+	public ApiMerger setMaxFiles(int value) {
+		this.maxFiles = value;
+		return this;
+	}
+
+	/**
+	 * Merges the commit with the indicated sha into the files merged so far; if there are conflicts
+	 * tries to resolve them using the resolver. Returns true if merged, false if any conflict remains
+	 * (the commit is not merged) and null if the merge can't be done through the api
+	 */
+	public Boolean merge(String sha, IConflictResolver resolver) {
+		CommitDiff diff = client.compareCommits(projectId, headSha, sha);
+		if (!diff.complete() || diff.mergeBase() == null) {
+			log.warn("Can't get all changes of {} from the api", sha);
+			return null; // NOSONAR null means that can't be determined
+		}
+		Map<String, String> changes = new LinkedHashMap<>();
+		for (String path : diff.files()) {
+			if (!merged.containsKey(path) && merged.size() + changes.size() >= maxFiles) {
+				log.warn("Too many changed files to merge using the api, max: {}", maxFiles);
+				return null; // NOSONAR
+			}
+			Content base = getContent(path, diff.mergeBase());
+			Content theirs = getContent(path, sha);
+			Content ours = merged.containsKey(path) ? Content.of(merged.get(path)) : getHeadContent(path);
+			if (base.binary || theirs.binary || ours.binary) {
+				log.warn("Binary or large file can't be merged using the api: {}", path);
+				return null; // NOSONAR
+			}
+			if (!mergeContent(path, base.text, ours.text, theirs.text, resolver, changes))
+				return false;
+		}
+		merged.putAll(changes);
+		return true;
+	}
+
+	/**
+	 * Creates a new branch with a single commit that includes the merged changes
+	 * (parent is the commit of the branch where merges have been done), returns the sha of the commit
+	 */
+	public String commit(String branch, String message) {
+		Map<String, String> files = new LinkedHashMap<>();
+		Set<String> newFiles = new HashSet<>(); // known from the content of the branch read by the merges
+		for (Map.Entry<String, String> file : merged.entrySet()) { // excludes files that end as in the branch
+			String head = getHeadContent(file.getKey()).text;
+			if (!Objects.equals(file.getValue(), head))
+				files.put(file.getKey(), file.getValue());
+			if (head == null && file.getValue() != null)
+				newFiles.add(file.getKey());
+		}
+		log.debug("Create branch {} with changes in files: {}, new files: {}", branch, files.keySet(), newFiles);
+		return client.createBranchCommit(projectId, branch, headSha, message, files, newFiles);
+	}
+
+	// Three-way merge of the content of a file (null if it does not exist), puts the result in changes,
+	// returns false if there are conflicts that can't be resolved
+	@SneakyThrows(IOException.class)
+	private boolean mergeContent(String path, String base, String ours, String theirs,
+			IConflictResolver resolver, Map<String, String> changes) {
+		if (Objects.equals(base, theirs)) {
+			changes.put(path, ours);
+			return true;
+		}
+		if (Objects.equals(base, ours) || Objects.equals(ours, theirs)) {
+			changes.put(path, theirs);
+			return true;
+		}
+		if (base == null || ours == null || theirs == null) { // add/add, modify/delete conflicts
+			log.warn("Conflicting file can't be resolved: {}", path);
+			return false;
+		}
+		MergeResult<RawText> result = new MergeAlgorithm().merge(RawTextComparator.DEFAULT, getRawText(base),
+				getRawText(ours), getRawText(theirs));
+		if (result.containsConflicts()) {
+			log.warn("Conflicting file: {}", path);
+			if (resolver == null)
+				return false;
+		}
+		// without conflicts, the resolver is not used and only writes the merged content
+		byte[] content = new HunkResolver(resolver).resolve(path, result);
+		if (content == null)
+			return false;
+		changes.put(path, new String(content, StandardCharsets.UTF_8));
+		return true;
+	}
+
+	private RawText getRawText(String content) {
+		return new RawText(content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private Content getHeadContent(String path) {
+		if (!headContent.containsKey(path)) {
+			Content content = getContent(path, headSha);
+			if (content.binary)
+				return content;
+			headContent.put(path, content.text);
+		}
+		return Content.of(headContent.get(path));
+	}
+
+	private Content getContent(String path, String sha) {
+		byte[] bytes = client.getFileContent(projectId, path, sha);
+		if (bytes == null)
+			return Content.of(null);
+		if (bytes.length > MAX_FILE_SIZE || RawText.isBinary(bytes))
+			return new Content(null, true);
+		return Content.of(new String(bytes, StandardCharsets.UTF_8));
+	}
+
+	// Text content of a file (null if does not exist), binary or large files are not read
+	private static class Content {
+		private String text;
+		private boolean binary;
+
+		private Content(String text, boolean binary) {
+			this.text = text;
+			this.binary = binary;
+		}
+
+		private static Content of(String text) {
+			return new Content(text, false);
+		}
+	}
+
+}
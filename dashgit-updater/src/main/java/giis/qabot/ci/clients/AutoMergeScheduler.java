@@ -0,0 +1,143 @@
+package giis.qabot.ci.clients;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Asynchronous setting of the auto-merge of the pull requests that have just been created:
+ * auto-merge can't be set until the provider has computed the state of the new pull request
+ * (e.g. the mergeable state in GitHub or the detailed merge status in GitLab).
+ * Instead of sleeping a fixed time before each attempt, a readiness check polls that state
+ * with a jittered exponential backoff (starting in tens of milliseconds), and the attempt
+ * is made as soon as the pull request is ready (attempts that must be retried use the same backoff).
+ *
+ * Checks and attempts run in a shared pool of daemon threads, so that the updater can continue
+ * with the next repository while the auto-merge is pending. At the end, the updater takes the scheduled
+ * auto-merges to wait for them (at most until the timeout of the last one) and report those not set.
+ */
+@Slf4j
+public class AutoMergeScheduler {
+	public static final String SUCCESS = "success";
+	public static final String RETRY = "retry";
+	public static final String ABORT = "abort";
+
+	private static final int THREADS = 4;
+	private static final AutoMergeScheduler shared = new AutoMergeScheduler(50, 4000);
+
+	private long initialDelay;
+	private long maxDelay;
+	private ScheduledExecutorService executor;
+	private Set<CompletableFuture<Boolean>> pending = ConcurrentHashMap.newKeySet();
+	private Queue<CompletableFuture<Boolean>> scheduled = new ConcurrentLinkedQueue<>(); // until taken
+	private AtomicLong lastDeadline = new AtomicLong(); // of all scheduled auto-merges
+
+	/**
+	 * Creates a scheduler whose backoff starts at initialDelay millis and doubles up to maxDelay millis
+	 */
+	public AutoMergeScheduler(long initialDelay, long maxDelay) {
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		AtomicInteger threadCount = new AtomicInteger();
+		ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "automerge-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		pool.setRemoveOnCancelPolicy(true);
+		this.executor = pool;
+	}
+
+	/**
+	 * Scheduler shared by all clients
+	 */
+	public static AutoMergeScheduler getShared() {
+		return shared;
+	}
+
+	/**
+	 * Schedules the auto-merge of a pull request: polls ready until it returns true and then runs the attempt,
+	 * that returns SUCCESS, ABORT (can't be set, e.g. not allowed in the repository) or RETRY.
+	 * The future completes with true if auto-merge is set, or false if aborted or not set before the timeout (millis).
+	 * Exceptions thrown by the check or the attempt are logged and considered as not ready and retry.
+	 */
+	public CompletableFuture<Boolean> schedule(String name, BooleanSupplier ready, Supplier<String> attempt,
+			long timeout) {
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+		pending.add(result);
+		scheduled.add(result);
+		result.whenComplete((value, exception) -> pending.remove(result));
+		long deadline = System.currentTimeMillis() + timeout;
+		lastDeadline.accumulateAndGet(deadline, Math::max);
+		executor.execute(() -> step(name, ready, attempt, deadline, initialDelay, 1, result));
+		return result;
+	}
+
+	private void step(String name, BooleanSupplier ready, Supplier<String> attempt, long deadline, long delay,
+			int count, CompletableFuture<Boolean> result) {
+		String status = RETRY;
+		try {
+			if (ready.getAsBoolean())
+				status = attempt.get();
+			else
+				log.trace("Auto-merge of {} not ready, check {}", name, count);
+		} catch (Exception e) { // NOSONAR also checked exceptions thrown by the @SneakyThrows api methods
+			log.warn("Auto-merge of {} failed, check {}: {}", name, count, e.toString());
+		}
+		if (SUCCESS.equals(status)) {
+			log.info("Automerge is set: {}, after {} checks", name, count);
+			result.complete(true);
+		} else if (ABORT.equals(status)) {
+			log.error("Can't set automerge: {}", name);
+			result.complete(false);
+		} else if (System.currentTimeMillis() + delay > deadline) {
+			log.error("Can't set automerge: {}, after {} checks", name, count);
+			result.complete(false);
+		} else {
+			// equal jitter: half of the delay is random, to spread the checks of the pull requests created together
+			long wait = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+			executor.schedule(() -> step(name, ready, attempt, deadline, Math.min(delay * 2, maxDelay), count + 1,
+					result), wait, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Number of auto-merges not completed yet
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Returns the auto-merges scheduled since the previous call (completed or not), to wait for their results
+	 */
+	public List<CompletableFuture<Boolean>> takeScheduled() {
+		List<CompletableFuture<Boolean>> taken = new ArrayList<>();
+		for (CompletableFuture<Boolean> result = scheduled.poll(); result != null; result = scheduled.poll())
+			taken.add(result);
+		return taken;
+	}
+
+	/**
+	 * Max millis to wait until all the auto-merges scheduled before are completed: the time until
+	 * the timeout of the last one, plus the max delay as a margin for the check that is running at the timeout
+	 */
+	public long getAwaitTime() {
+		return Math.max(0, lastDeadline.get() - System.currentTimeMillis()) + maxDelay;
+	}
+
+}
@@ -2,27 +2,74 @@ package giis.qabot.ci.clients;
 
 import org.apache.commons.io.FileUtils;
 import org.eclipse.jgit.api.CherryPickResult;
+import org.eclipse.jgit.api.CloneCommand;
+import org.eclipse.jgit.api.CreateBranchCommand.SetupUpstreamMode;
+import org.eclipse.jgit.api.FetchCommand;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.MergeResult;
+import org.eclipse.jgit.api.PushCommand;
 import org.eclipse.jgit.api.ResetCommand.ResetType;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.Sequence;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.merge.ResolveMerger;
+import org.eclipse.jgit.merge.StrategyRecursive;
+import org.eclipse.jgit.merge.ThreeWayMerger;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
 
-import giis.portable.util.FileUtil;
 import giis.qabot.core.models.Util;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 //https://git-scm.com/book/es/v2/Ap%C3%A9ndice-B%3A-Integrando-Git-en-tus-Aplicaciones-JGit
 //https://github.com/centic9/jgit-cookbook
@@ -38,6 +85,18 @@ import java.util.Map;
  */
 @Slf4j
 public class GitLocal implements AutoCloseable {
+	// Distingue los workdir de instancias creadas en el mismo milisegundo (p.e. updates ejecutados en paralelo)
+	private static final AtomicLong instanceCount = new AtomicLong();
+	private static final int DEEPEN_FACTOR = 4;
+	private static final String FETCHED_REFS = "refs/fetched/"; // destino de los commits obtenidos por sha
+	// Pool shared by the trial merges of all instances (a trial merge does not submit other tasks to the pool),
+	// daemon threads that do not prevent the exit of the updater
+	private static final ExecutorService trialExecutor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), runnable -> {
+				Thread thread = new Thread(runnable, "trial-merge");
+				thread.setDaemon(true);
+				return thread;
+			});
 	private String rootDir; // bajo esta carpeta se crean los workdir al hacer clone
 	private String rootUrl; // url de git, sin nombre de repositorio
 	private String user;
@@ -46,9 +105,26 @@ public class GitLocal implements AutoCloseable {
 	// Las siguientes establecen el contexto cuando se clona un repositorio
 	private Git git; // objeto del api creado al hacer cloneRepository
 	private String workTree; // directorio de trabajo relativo
+	private String repoName; // repositorio clonado
 	private boolean cleanOnClose = false; // si true borra el workTree al cerrar este objeto
 	private String defaultBranch; // solo se podra conocer si este objeto ha clonado el repo
-	private String timestamp; // identifica de forma unica esta instancia
+	private boolean inCore = false; // si true el repo es bare y los merges y commits se hacen en memoria
+	private MirrorCache mirrorCache; // si existe, el clone toma los objetos de un mirror local
+	private String mirrorUrl; // url del mirror usado por este objeto, para liberarlo al cerrar
+	private int cloneDepth = 0; // si mayor que cero, el clone es shallow con esta profundidad de historia
+	private boolean targetedFetch = false; // si true, el clone solo obtiene la rama y refs indicadas
+	private String targetBranch; // rama a clonar con targetedFetch
+	private List<String> targetRefs; // shas o refs a clonar con targetedFetch
+	private boolean sparseCheckout = false; // si true, el work tree solo contiene los ficheros cambiados por los merges
+	private List<String> sparsePaths; // ficheros del work tree si sparseCheckout, determinados en checkoutSparse
+	private boolean treeMerge = false; // si true, los commits se combinan con mergeTree
+	private boolean mergeCommits = true; // si true, siempre hay un commit de merge por cada commit combinado
+	private boolean singleCommit = false; // si true, los commits se combinan con mergeSingle
+	private boolean squash = false; // si true, el commit unico de mergeSingle y mergeDisjoint solo tiene un padre
+	private boolean pushDeletes = false; // si true, las ramas incluidas se borran en el mismo push (pushAndDelete)
+	private ResolutionCache resolutionCache; // si existe, los conflictos se resuelven usando las resoluciones previas
+	private String timestamp; // momento de creacion de esta instancia
+	private long instanceId; // junto con timestamp identifica de forma unica esta instancia
 
 	public GitLocal(String rootDir, String rootUrl, String user, String mail, String token) {
 		this.rootDir = rootDir;
@@ -59,6 +135,7 @@ public class GitLocal implements AutoCloseable {
 		this.email = mail;
 		this.token = token;
 		this.timestamp = new SimpleDateFormat("yyyyMMdd-HHmmssSSS").format(new Date());
+		this.instanceId = instanceCount.incrementAndGet();
 	}
 
 	@Override
@@ -67,6 +144,8 @@ public class GitLocal implements AutoCloseable {
 			git.getRepository().close();
 			git.close();
 		}
+		if (mirrorUrl != null)
+			mirrorCache.release(mirrorUrl);
 		if (cleanOnClose)
 			cleanWorkDir();
 	}
@@ -76,8 +155,140 @@ public class GitLocal implements AutoCloseable {
 		return this;
 	}
 
+	/**
+	 * If true, the repository is cloned as bare and merges and commits are done in memory
+	 * (in-core merge, writing only blobs, trees and commits), without any checkout or
+	 * scan of the work tree. Must be set before cloning the repository.
+	 */
+	public GitLocal setInCore(boolean value) {
+		this.inCore = value;
+		return this;
+	}
+
+	/**
+	 * Sets a cache of mirrors of the remote repositories: the clone only fetches the changes
+	 * into the mirror and the local repository borrows the objects from the mirror (alternates).
+	 * Must be set before cloning the repository.
+	 */
+	public GitLocal setMirrorCache(MirrorCache value) {
+		this.mirrorCache = value;
+		return this;
+	}
+
+	/**
+	 * Sets a cache of conflict resolutions: the merges resolve the conflicts that have been resolved
+	 * before (or found unresolved) using the recorded resolution instead of the resolver
+	 */
+	public GitLocal setResolutionCache(ResolutionCache value) {
+		this.resolutionCache = value;
+		return this;
+	}
+
+	/**
+	 * Returns the resolver to use in merges: the resolver received as parameter, 
+	 * that uses the resolution cache if it has been set
+	 */
+	public IConflictResolver getResolver(IConflictResolver resolver) {
+		return resolutionCache == null || resolver == null ? resolver : resolutionCache.wrap(resolver);
+	}
+
+	/**
+	 * Sets the depth of history to clone (0 for full clone). A shallow clone does not include
+	 * all the merge bases, call deepenToMergeBases before merging. Not used if there is a mirror cache.
+	 * Note that jgit does not fetch blobs lazily: the clone includes the blobs of the cloned commits.
+	 */
+	public GitLocal setCloneDepth(int value) {
+		this.cloneDepth = value;
+		return this;
+	}
+
+	/**
+	 * If true, cloneRepository with a branch and a list of refs only fetches these refs
+	 * (commit shas or full ref names such as refs/pull/1/head) instead of all branches and tags.
+	 * Not used if there is a mirror cache.
+	 */
+	public GitLocal setTargetedFetch(boolean value) {
+		this.targetedFetch = value;
+		return this;
+	}
+
+	/**
+	 * If true, the repository is cloned without checkout and checkoutSparse only writes the files
+	 * changed by the commits to merge (commits and resets are restricted to these files).
+	 * Must be set before cloning the repository. Not used in-core (there is no work tree).
+	 */
+	public GitLocal setSparseCheckout(boolean value) {
+		this.sparseCheckout = value;
+		return this;
+	}
+
+	/**
+	 * If true, the combined branch is created by mergeTree (pairwise merges of the commits in a binary tree,
+	 * in parallel and in-core) instead of merging each commit after the previous one
+	 */
+	public GitLocal setTreeMerge(boolean value) {
+		this.treeMerge = value;
+		return this;
+	}
+
+	public boolean isTreeMerge() {
+		return treeMerge;
+	}
+
+	/**
+	 * If true, the combined branch always has a merge commit (Merge: title) for each merged commit;
+	 * if false, commits that change different files can be combined with mergeDisjoint in a single commit
+	 */
+	public GitLocal setMergeCommits(boolean value) {
+		this.mergeCommits = value;
+		return this;
+	}
+
+	public boolean isMergeCommits() {
+		return mergeCommits;
+	}
+
+	/**
+	 * If true, the combined branch is created by mergeSingle (the commits are merged in-core
+	 * without writing a commit for each merge, and the result is written in a single commit)
+	 */
+	public GitLocal setSingleCommit(boolean value) {
+		this.singleCommit = value;
+		return this;
+	}
+
+	public boolean isSingleCommit() {
+		return singleCommit || squash;
+	}
+
+	/**
+	 * If true, the single commit written by mergeSingle or mergeDisjoint has only the current commit as parent
+	 * (a squashed commit instead of an octopus merge commit), implies setSingleCommit
+	 */
+	public GitLocal setSquash(boolean value) {
+		this.squash = value;
+		return this;
+	}
+
+	/**
+	 * If true, the combined branch should be pushed with pushAndDelete, that deletes the branches
+	 * of the merged commits in the same push (restoreBranches pushes them again if needed)
+	 */
+	public GitLocal setPushDeletes(boolean value) {
+		this.pushDeletes = value;
+		return this;
+	}
+
+	public boolean isPushDeletes() {
+		return pushDeletes;
+	}
+
+	private boolean isSparse() {
+		return sparseCheckout && !inCore;
+	}
+
 	private String getNewWorkdirName(String repoName) {
-		return repoName.replace("/", "_") + "-" + timestamp;
+		return repoName.replace("/", "_") + "-" + timestamp + "-" + instanceId;
 	}
 
 	public String getWorkTree() {
@@ -92,29 +303,293 @@ public class GitLocal implements AutoCloseable {
 	 * Crea un nuevo repositorio local en una carpeta bajo el rootDir establecido en la instanciacion
 	 * con el contenido de la rama por defecto del repositorio establecido en la inicializacion
 	 */
-	@SneakyThrows(GitAPIException.class)
 	public GitLocal cloneRepository(String repoName) {
+		this.repoName = repoName;
+		return cloneRepository(repoName, cloneDepth);
+	}
+
+	/**
+	 * Como el anterior, pero si se ha establecido targetedFetch, el repositorio local solo contiene
+	 * la rama indicada (que se considera la rama por defecto) y las refs indicadas (shas de commits o nombres
+	 * completos de refs), de forma que el coste no depende del numero de ramas del repositorio remoto.
+	 * Los commits indicados por sha se guardan en refs/fetched/sha
+	 */
+	public GitLocal cloneRepository(String repoName, String branch, List<String> refs) {
+		if (targetedFetch && mirrorCache == null) {
+			this.targetBranch = branch;
+			this.targetRefs = refs;
+		}
+		return cloneRepository(repoName);
+	}
+
+	@SneakyThrows(GitAPIException.class)
+	private GitLocal cloneRepository(String repoName, int depth) {
 		// Antes de clonar crea la carpeta de trabajo donde se va a clonar (se guarda en variable de instancia)
 		workTree = createWorkTree(repoName);
-		git = Git.cloneRepository().setURI(rootUrl + "/" + repoName).setDirectory(new File(workTree))
-				.setCredentialsProvider(new UsernamePasswordCredentialsProvider(user, token)).call();
-		configUserAndEmail(workTree);
+		if (mirrorCache != null)
+			git = cloneFromMirror(rootUrl + "/" + repoName);
+		else if (targetBranch != null)
+			git = fetchTargeted(rootUrl + "/" + repoName, depth);
+		else
+			git = getCloneCommand(rootUrl + "/" + repoName, depth).call();
+		configUserAndEmail();
 		defaultBranch = getCurrentBranch();
 		log.debug("Default branch: {}", defaultBranch);
 		return this;
 	}
 	
+	private CloneCommand getCloneCommand(String url, int depth) {
+		CloneCommand clone = Git.cloneRepository().setURI(url).setDirectory(new File(workTree)).setBare(inCore)
+				.setCredentialsProvider(new UsernamePasswordCredentialsProvider(user, token)).setNoCheckout(isSparse());
+		if (depth > 0)
+			clone.setDepth(depth);
+		return clone;
+	}
+
+	// Replaces the local repository by a new clone with the given depth (0 for full clone)
+	private void recloneRepository(int depth) {
+		git.getRepository().close();
+		git.close();
+		cleanWorkDir();
+		cloneRepository(repoName, depth);
+	}
+
+	/**
+	 * Clone equivalente al anterior, pero tomando los objetos del mirror (actualizado con fetch)
+	 * en lugar de descargarlos: el repositorio local referencia los objetos del mirror (alternates),
+	 * por lo que el fetch desde el mirror solo crea las ramas.
+	 */
+	@SneakyThrows({ GitAPIException.class, IOException.class, URISyntaxException.class })
+	private Git cloneFromMirror(String url) {
+		String mirror = mirrorCache.acquire(url, new UsernamePasswordCredentialsProvider(user, token));
+		mirrorUrl = url;
+		File dir = new File(workTree);
+		try (Git init = Git.init().setDirectory(dir).setBare(inCore).call()) {
+			File alternates = new File(init.getRepository().getDirectory(), "objects/info/alternates");
+			FileUtils.writeStringToFile(alternates, new File(mirror, "objects").getAbsolutePath() + "\n", StandardCharsets.UTF_8);
+		}
+		Git local = Git.open(dir); // reopen to read the alternates
+		RefSpec refSpec = new RefSpec("+" + Constants.R_HEADS + "*:" + getTrackingPrefix() + "*");
+		addOrigin(local, url, refSpec);
+		local.fetch().setRemote(new File(mirror).getAbsolutePath()).setRefSpecs(refSpec).call();
+		checkoutTracking(local, getMirrorDefaultBranch(mirror));
+		return local;
+	}
+
+	/**
+	 * Clone equivalente al anterior, pero solo obtiene la rama y refs indicadas en targetBranch y targetRefs:
+	 * el fetch solo pide (y en protocolo v2 solo anuncia) las refs de sus refspecs.
+	 * El remoto queda configurado para hacer fetch solo de la rama.
+	 */
+	@SneakyThrows({ GitAPIException.class, IOException.class, URISyntaxException.class })
+	private Git fetchTargeted(String url, int depth) {
+		Git local = Git.init().setDirectory(new File(workTree)).setBare(inCore).call();
+		List<RefSpec> refSpecs = getTargetedRefSpecs();
+		addOrigin(local, url, refSpecs.get(0));
+		log.debug("Targeted fetch of refs: {}", refSpecs);
+		FetchCommand fetch = local.fetch().setRefSpecs(refSpecs)
+				.setCredentialsProvider(new UsernamePasswordCredentialsProvider(user, token));
+		if (depth > 0)
+			fetch.setDepth(depth);
+		fetch.call();
+		// jgit fetches the commits given by sha but does not update their destination refs
+		for (String ref : targetRefs)
+			if (ObjectId.isId(ref)) {
+				RefUpdate update = local.getRepository().updateRef(FETCHED_REFS + ref);
+				update.setNewObjectId(ObjectId.fromString(ref));
+				update.update();
+			}
+		checkoutTracking(local, targetBranch);
+		return local;
+	}
+
+	// The target branch (first, as configured in the remote) and the target refs
+	private List<RefSpec> getTargetedRefSpecs() {
+		List<RefSpec> refSpecs = new ArrayList<>();
+		refSpecs.add(new RefSpec("+" + Constants.R_HEADS + targetBranch + ":" + getTrackingPrefix() + targetBranch));
+		for (String ref : targetRefs)
+			refSpecs.add(ObjectId.isId(ref) ? new RefSpec(ref + ":" + FETCHED_REFS + ref) : new RefSpec("+" + ref + ":" + ref));
+		return refSpecs;
+	}
+
+	// Same configuration of the remote and branches as a clone (bare or not)
+	private String getTrackingPrefix() {
+		return inCore ? Constants.R_HEADS : Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/";
+	}
+
+	private void addOrigin(Git local, String url, RefSpec refSpec) throws GitAPIException, IOException, URISyntaxException {
+		local.remoteAdd().setName(Constants.DEFAULT_REMOTE_NAME).setUri(new URIish(url)).call();
+		StoredConfig config = local.getRepository().getConfig();
+		config.setString("remote", Constants.DEFAULT_REMOTE_NAME, "fetch", refSpec.toString());
+		config.save();
+	}
+
+	private void checkoutTracking(Git local, String branch) throws GitAPIException, IOException {
+		if (inCore || isSparse()) { // no files are written (sparse files are written by checkoutSparse)
+			if (!inCore)
+				local.branchCreate().setName(branch).setStartPoint(getTrackingPrefix() + branch)
+						.setUpstreamMode(SetupUpstreamMode.TRACK).call();
+			local.getRepository().updateRef(Constants.HEAD).link(Constants.R_HEADS + branch);
+		} else {
+			local.checkout().setName(branch).setCreateBranch(true).setStartPoint(getTrackingPrefix() + branch)
+					.setUpstreamMode(SetupUpstreamMode.TRACK).call();
+		}
+	}
+
+	private String getMirrorDefaultBranch(String mirror) throws IOException {
+		try (Git git = Git.open(new File(mirror))) { // NOSONAR same name, this is the mirror
+			return git.getRepository().getBranch();
+		}
+	}
+
+	/**
+	 * En un clone shallow, profundiza en la historia (un fetch que multiplica la profundidad)
+	 * hasta que se alcanzan las bases de merge entre la rama actual y cada uno de los commits indicados,
+	 * si no se alcanzan, obtiene el resto de la historia con un fetch unshallow. No hace nada si el clone no es shallow
+	 */
+	@SneakyThrows(IOException.class)
+	public GitLocal deepenToMergeBases(List<String> shas) {
+		if (cloneDepth <= 0 || mirrorCache != null || hasMergeBases(shas))
+			return this;
+		int depth = cloneDepth * DEEPEN_FACTOR;
+		log.debug("Merge bases not found, deepen to depth {}", depth);
+		if (fetchHistory(depth) && hasMergeBases(shas))
+			return this;
+		log.debug("Merge bases not found, fetch all history");
+		if (!fetchHistory(0)) {
+			// Note that jgit may fail to negotiate the fetch when there are many local commits
+			// (Expected ACK/NAK, got: unshallow), the last resort is a full clone
+			log.debug("Fetch of all history failed, clone all history");
+			recloneRepository(0);
+		}
+		return this;
+	}
+
+	// Fetches the same refs than the clone with the given depth (0 to unshallow), returns false if the fetch fails
+	private boolean fetchHistory(int depth) {
+		FetchCommand fetch = git.fetch().setCredentialsProvider(new UsernamePasswordCredentialsProvider(user, token));
+		if (targetBranch != null)
+			fetch.setRefSpecs(getTargetedRefSpecs());
+		if (depth > 0)
+			fetch.setDepth(depth);
+		else
+			fetch.setUnshallow(true);
+		try {
+			fetch.call();
+			return true;
+		} catch (GitAPIException e) {
+			log.warn("Fetch of history with depth {} failed: {}", depth, e.getMessage());
+			return false;
+		}
+	}
+
+	private boolean hasMergeBases(List<String> shas) throws IOException {
+		try (RevWalk walk = new RevWalk(git.getRepository())) {
+			RevCommit head = walk.parseCommit(getCommitId(Constants.HEAD));
+			for (String sha : shas)
+				if (getMergeBase(walk, head, walk.parseCommit(getCommitId(sha))) == null)
+					return false;
+		}
+		return true;
+	}
+
+	/**
+	 * En un clone con sparseCheckout, escribe en el work tree solamente los ficheros cambiados
+	 * por los commits indicados desde su base de merge con la rama actual (que debe estar en la historia),
+	 * el indice contiene todos los ficheros de la rama actual. No hace nada si no es sparseCheckout
+	 */
+	@SneakyThrows({ GitAPIException.class, IOException.class })
+	public GitLocal checkoutSparse(List<String> shas) {
+		if (!isSparse())
+			return this;
+		sparsePaths = getChangedPaths(shas);
+		log.debug("Sparse checkout of {} files: {}", sparsePaths.size(), sparsePaths);
+		restoreSparse();
+		return this;
+	}
+
+	// Resets the index to the current commit (without touching the work tree) and writes the sparse files,
+	// the sparse files that are not in the current commit (e.g. added by a failed merge) are removed
+	private void restoreSparse() throws GitAPIException {
+		git.reset().setMode(ResetType.MIXED).call();
+		if (sparsePaths.isEmpty())
+			return;
+		git.clean().setPaths(new TreeSet<>(sparsePaths)).call();
+		git.checkout().addPaths(sparsePaths).call();
+	}
+
+	// Union of the files changed by each commit with respect to its merge base with the current commit
+	private List<String> getChangedPaths(List<String> shas) throws IOException {
+		Set<String> paths = new TreeSet<>();
+		Repository repo = git.getRepository();
+		try (RevWalk walk = new RevWalk(repo)) {
+			RevCommit head = walk.parseCommit(getCommitId(Constants.HEAD));
+			for (String sha : shas) {
+				RevCommit commit = walk.parseCommit(getCommitId(sha));
+				RevCommit base = getMergeBase(walk, head, commit);
+				try (TreeWalk treeWalk = new TreeWalk(repo)) {
+					if (base == null) // unrelated histories, all files of the commit
+						treeWalk.addTree(new EmptyTreeIterator());
+					else
+						treeWalk.addTree(base.getTree());
+					treeWalk.addTree(commit.getTree());
+					treeWalk.setRecursive(true);
+					treeWalk.setFilter(TreeFilter.ANY_DIFF);
+					while (treeWalk.next())
+						paths.add(treeWalk.getPathString());
+				}
+			}
+		}
+		return new ArrayList<>(paths);
+	}
+
+	private RevCommit getMergeBase(RevWalk walk, RevCommit head, RevCommit commit) throws IOException {
+		walk.reset();
+		walk.setRevFilter(RevFilter.MERGE_BASE);
+		walk.markStart(head);
+		walk.markStart(commit);
+		return walk.next();
+	}
+
+	/**
+	 * Regiones cambiadas por un commit respecto de su base de merge con la rama actual (que debe estar
+	 * en la historia): para cada fichero, los rangos de lineas [inicio, fin) de la base que son modificados
+	 * (un rango vacio es una insercion). Si el fichero es nuevo, borrado o binario el rango cubre todo el fichero
+	 */
+	@SneakyThrows(IOException.class)
+	public Map<String, List<int[]>> getChangedRegions(String sha) {
+		Map<String, List<int[]>> regions = new TreeMap<>();
+		Repository repo = git.getRepository();
+		try (RevWalk walk = new RevWalk(repo); DiffFormatter formatter = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+			RevCommit commit = walk.parseCommit(getCommitId(sha));
+			RevCommit base = getMergeBase(walk, walk.parseCommit(getCommitId(Constants.HEAD)), commit);
+			formatter.setRepository(repo);
+			formatter.setDetectRenames(false);
+			for (DiffEntry entry : formatter.scan(base == null ? null : base.getTree(), commit.getTree())) {
+				List<int[]> ranges = new ArrayList<>();
+				if (entry.getChangeType() == DiffEntry.ChangeType.MODIFY)
+					for (Edit edit : formatter.toFileHeader(entry).toEditList())
+						ranges.add(new int[] { edit.getBeginA(), edit.getEndA() });
+				if (ranges.isEmpty()) // not modified, binary or only mode changed
+					ranges.add(new int[] { 0, Integer.MAX_VALUE });
+				String path = entry.getChangeType() == DiffEntry.ChangeType.DELETE ? entry.getOldPath() : entry.getNewPath();
+				regions.put(path, ranges);
+			}
+		}
+		return regions;
+	}
+
 	// Not all methods have a method like setCommitter to indicate who performed every command.
 	// The solution is to add this info to the config file just after reository clone
-	private void configUserAndEmail(String workTree) {
+	// (using the jgit config, that is located at a different place in bare repositories)
+	@SneakyThrows(IOException.class)
+	private void configUserAndEmail() {
 		if (this.user==null || this.email ==null || "".equals(this.user)|| "".equals(this.email))
 			return; // do not modify config if some value is missing
-		String config = FileUtil.fileRead(workTree + "/.git/config");
-		config += "\n[user]"
-				+ "\n\tname = " + this.user
-				+ "\n\temail = " + this.email
-				+ "\n";
-		FileUtil.fileWrite(workTree + "/.git/config", config);
+		StoredConfig config = git.getRepository().getConfig();
+		config.setString("user", null, "name", this.user);
+		config.setString("user", null, "email", this.email);
+		config.save();
 	}
 
 	@SneakyThrows(IOException.class)
@@ -135,29 +610,96 @@ public class GitLocal implements AutoCloseable {
 	
 	/**
 	 * Borra la carpeta donde se ha clonado el repo, normalmente se realiza al cerrar si se ha especificado cloneOnClose
-	 * Controla excepcion porque es posible que ya no exista si el CI ha eliminado el workspace antes de ejectuarse este metodo
+	 * Controla excepcion porque es posible que ya no exista si el CI ha eliminado el workspace antes de ejectuarse este metodo.
+	 * Tras un fetch, jgit puede estar escribiendo en segundo plano (auto gc), por lo que si falla reintenta una vez
 	 */
 	@SneakyThrows(IOException.class)
 	public void cleanWorkDir() {
+		if (workTree == null) // not cloned (e.g. combined branch created using the api)
+			return;
 		try {
-			FileUtils.deleteDirectory(new File(workTree));
+			try {
+				FileUtils.deleteDirectory(new File(workTree));
+			} catch (IOException e) {
+				log.debug("Exception {} cleaning workdir {}, wait and retry", e.getMessage(), workTree);
+				Util.delay(500);
+				FileUtils.deleteDirectory(new File(workTree));
+			}
 		} catch (RuntimeException e) {
 			log.warn("Exception {} cleaning workdir {}. maybe the CI has already deleted the workspace", e.getMessage(), workTree);
 		}
 	}
 
 	/**
-	 * Commit del repositorio local (inclye ficheros nuevos y borrados en el indice)
+	 * Commit del repositorio local con los cambios en los ficheros indicados (rutas relativas al work tree,
+	 * incluyendo ficheros nuevos y borrados), que se anyaden al indice sin recorrer el resto del work tree.
+	 * Sin ficheros, el commit es vacio (no recorre el work tree)
 	 */
-	@SneakyThrows(GitAPIException.class)
-	public GitLocal commit(String message) {
+	@SneakyThrows({ GitAPIException.class, IOException.class })
+	public GitLocal commit(String message, String... paths) {
 		log.debug("Commit branch {} '{}'", getCurrentBranch(), message);
-		git.add().addFilepattern(".").call(); // including new files, excluding deleted files
-		git.add().addFilepattern(".").setUpdate(true).call(); // including deleted files, excluding new files
+		if (inCore) { // no work tree, only can commit the tree of the current commit (empty commit)
+			ObjectId head = getCommitId(Constants.HEAD);
+			commitInCore(getTreeId(head), message, head);
+			return this;
+		}
+		Map<String, byte[]> contents = new TreeMap<>();
+		for (String path : paths) {
+			File file = Paths.get(getWorkTree(), path).toFile();
+			contents.put(path, file.exists() ? Files.readAllBytes(file.toPath()) : null);
+		}
+		stage(contents);
 		git.commit().setMessage(message).call();
 		return this;
 	}
 
+	// Adds to the index the content of each file (null if deleted) replacing all its stages (if conflicting),
+	// using DirCache edits instead of git add, that scans and hashes the whole work tree
+	private void stage(Map<String, byte[]> contents) throws IOException {
+		if (contents.isEmpty())
+			return;
+		Repository repo = git.getRepository();
+		DirCache index = repo.lockDirCache();
+		try (ObjectInserter inserter = repo.newObjectInserter()) {
+			// the edit of an existing path is applied to all its stages, they are removed before
+			DirCacheEditor remover = index.editor();
+			Map<String, FileMode> modes = new TreeMap<>();
+			for (String path : contents.keySet()) {
+				DirCacheEntry entry = index.getEntry(path);
+				if (entry != null)
+					modes.put(path, entry.getFileMode());
+				else // new file
+					modes.put(path, Paths.get(getWorkTree(), path).toFile().canExecute() ? FileMode.EXECUTABLE_FILE
+							: FileMode.REGULAR_FILE);
+				remover.add(new DirCacheEditor.DeletePath(path));
+			}
+			remover.finish();
+			DirCacheEditor editor = index.editor();
+			for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+				if (content.getValue() == null)
+					continue; // deleted
+				ObjectId blob = inserter.insert(Constants.OBJ_BLOB, content.getValue());
+				File file = Paths.get(getWorkTree(), content.getKey()).toFile();
+				editor.add(new DirCacheEditor.PathEdit(content.getKey()) {
+					@Override
+					public void apply(DirCacheEntry ent) {
+						ent.setFileMode(modes.get(ent.getPathString()));
+						ent.setObjectId(blob);
+						ent.setLength(content.getValue().length);
+						ent.setLastModified(Instant.ofEpochMilli(file.lastModified()));
+					}
+				});
+			}
+			editor.finish();
+			inserter.flush();
+			index.write();
+			index.commit();
+		} finally {
+			index.unlock();
+		}
+		log.debug("Staged files: {}", contents.keySet());
+	}
+
 	/**
 	 * Push del repositorio local, con la opcion de push -f
 	 */
@@ -168,16 +710,93 @@ public class GitLocal implements AutoCloseable {
 		// aparece una excepcion org.eclipse.jgit.api.errors.TransportException 
 		// originada por java.net.SocketException con mensaje SocketClosed
 		// Si falla el push espera un poco y reintenta, monitorizar si esto evita los fallos
-		Iterable<PushResult> results;
+		Iterable<PushResult> results = callPush(() -> newPush().setForce(forcePush));
+		checkPushResultStatus(results);
+		return this;
+	}
+
+	private PushCommand newPush() {
+		return git.push().setCredentialsProvider(new UsernamePasswordCredentialsProvider(user, token));
+	}
+
+	// Ejecuta el push (creado de nuevo en cada intento), si falla con TransportException espera y reintenta una vez
+	private Iterable<PushResult> callPush(Supplier<PushCommand> push) throws GitAPIException {
 		try {
-			results = git.push().setCredentialsProvider(new UsernamePasswordCredentialsProvider(user, token)).setForce(forcePush).call();
+			return push.get().call();
 		} catch (TransportException e) {
 			log.error("Push Branch Exception, wait and retry {}", e.toString());
 			Util.delay(2000);
-			results = git.push().setCredentialsProvider(new UsernamePasswordCredentialsProvider(user, token)).setForce(forcePush).call();
+			return push.get().call();
 		}
-		checkPushResultStatus(results);
-		return this;
+	}
+
+	/**
+	 * Push de la rama actual y borrado de las ramas remotas indicadas en un unico push atomico
+	 * (un solo intercambio con el remoto en vez de borrar cada rama con el api). Si el remoto no admite
+	 * push atomico o rechaza alguna referencia, repite el push sin atomic: la rama actual debe quedar
+	 * actualizada, pero el borrado de ramas puede fallar. Devuelve las ramas que no se han podido borrar
+	 */
+	@SneakyThrows(GitAPIException.class)
+	public List<String> pushAndDelete(List<String> deleteBranches) {
+		String branch = Constants.R_HEADS + getCurrentBranch();
+		List<RefSpec> refSpecs = new ArrayList<>();
+		refSpecs.add(new RefSpec(branch + ":" + branch));
+		for (String deleteBranch : deleteBranches)
+			refSpecs.add(new RefSpec(":" + Constants.R_HEADS + deleteBranch));
+		log.debug("Push branch {} and delete branches {} in remote repository", branch, deleteBranches);
+		try {
+			Iterable<PushResult> results = pushRefSpecs(refSpecs, true);
+			if (getRejectedRefs(results).isEmpty())
+				return new ArrayList<>();
+			log.warn("Atomic push rejected, push again without atomic");
+		} catch (TransportException e) { // p.e. si no admite push atomico
+			log.warn("Atomic push failed, push again without atomic: {}", e.toString());
+		}
+		List<String> rejected = new ArrayList<>();
+		for (String ref : getRejectedRefs(pushRefSpecs(refSpecs, false))) {
+			if (ref.equals(branch))
+				throw new ClientException("Push branch failed: " + branch);
+			rejected.add(ref.substring(Constants.R_HEADS.length()));
+		}
+		if (!rejected.isEmpty())
+			log.warn("Branches not deleted by push: {}", rejected);
+		return rejected;
+	}
+
+	/**
+	 * Restaura en el remoto las ramas indicadas (nombre y sha del commit al que apuntaban) que se han borrado
+	 * con pushAndDelete, p.e. si no se ha podido crear el pull request de la rama combinada.
+	 * Devuelve las ramas que no se han podido restaurar
+	 */
+	@SneakyThrows(GitAPIException.class)
+	public List<String> restoreBranches(Map<String, String> branches) {
+		List<RefSpec> refSpecs = new ArrayList<>();
+		for (Map.Entry<String, String> branch : branches.entrySet())
+			refSpecs.add(new RefSpec(branch.getValue() + ":" + Constants.R_HEADS + branch.getKey()));
+		log.debug("Restore branches {} in remote repository", branches.keySet());
+		List<String> rejected = new ArrayList<>();
+		for (String ref : getRejectedRefs(pushRefSpecs(refSpecs, false)))
+			rejected.add(ref.substring(Constants.R_HEADS.length()));
+		if (!rejected.isEmpty())
+			log.error("Branches not restored: {}", rejected);
+		return rejected;
+	}
+
+	private Iterable<PushResult> pushRefSpecs(List<RefSpec> refSpecs, boolean atomic) throws GitAPIException {
+		return callPush(() -> newPush().setRefSpecs(refSpecs).setAtomic(atomic));
+	}
+
+	// Remote refs that have not been updated (deleting a ref that does not exist is not a rejection)
+	private List<String> getRejectedRefs(Iterable<PushResult> results) {
+		List<String> rejected = new ArrayList<>();
+		for (PushResult res : results)
+			for (RemoteRefUpdate rrupdate : res.getRemoteUpdates()) {
+				log.debug("Push result: {}", rrupdate);
+				if (rrupdate.getStatus() != RemoteRefUpdate.Status.OK
+						&& rrupdate.getStatus() != RemoteRefUpdate.Status.NON_EXISTING)
+					rejected.add(rrupdate.getRemoteName());
+			}
+		return rejected;
 	}
 
 	private void checkPushResultStatus(Iterable<PushResult> results) {
@@ -202,9 +821,16 @@ public class GitLocal implements AutoCloseable {
 	/**
 	 * Se establece en la rama indicada, con la opcion de crear la rama a partir de la actual (checkout -b)
 	 */
-	@SneakyThrows(GitAPIException.class)
+	@SneakyThrows({ GitAPIException.class, IOException.class })
 	public GitLocal checkout(String branch, boolean createBranch) {
 		log.debug("Checkout branch: {}, create new branch: {}", branch, createBranch);
+		if (inCore) { // no work tree, only moves HEAD to the branch
+			if (createBranch)
+				git.branchCreate().setName(branch).call();
+			RefUpdate update = git.getRepository().updateRef(Constants.HEAD);
+			update.link(Constants.R_HEADS + branch);
+			return this;
+		}
 		git.checkout().setName(branch).setCreateBranch(createBranch).call();
 		return this;
 	}
@@ -256,33 +882,335 @@ public class GitLocal implements AutoCloseable {
 	@SneakyThrows(GitAPIException.class)
 	public boolean merge(String sha, String prTitle, IConflictResolver resolver) {
 		log.debug("Merge from {}", sha);
+		resolver = getResolver(resolver);
 		ObjectId commitId = getCommitId(sha);
-		MergeResult res = git.merge().include(commitId).setMessage("Merge: " + prTitle).call();
+		if (inCore)
+			return mergeInCore(commitId, prTitle, resolver);
+		RecordingMergeStrategy strategy = new RecordingMergeStrategy();
+		MergeResult res = git.merge().include(commitId).setMessage("Merge: " + prTitle).setStrategy(strategy).call();
 		log.debug("Merge status: {}", res.getMergeStatus().toString());
 		// Si no tiene exito muestra conflictos y reset de la rama para deshacer cambios
 		boolean successful = res.getMergeStatus().isSuccessful();
 		// Show conflicting files and try to resolve (if resolver is set)
-		if (!successful && resolver != null) {
-			successful = resolveConflicts(res.getConflicts(), resolver);
-			// repo was in MERGING state, add to the index and continue the commit
-			if (successful) {
-				git.add().addFilepattern(".").call();
+		if (!successful && resolver != null && res.getConflicts() != null) { // no conflicts if failed
+			successful = resolveConflicts(res, strategy.merger, resolver);
+			// repo was in MERGING state, the resolved files have been added to the index, continue the commit
+			if (successful)
 				git.commit().setMessage("Resolve: "+prTitle).call();
-			}
 		}
-		// if there are conflicts, reset to skip merge changes
-		if (!successful)
+		// if there are conflicts, reset to skip merge changes (a hard reset would write all files if sparse)
+		if (!successful && isSparse())
+			restoreSparse();
+		else if (!successful)
 			git.reset().setMode(ResetType.HARD).call();
 		return successful;
 	}
-	private boolean resolveConflicts(Map<String, int[][]> conflicts, IConflictResolver resolver) {
-		int remainingConflicts = 0;
-		for (Map.Entry<String, int[][]> conflict : conflicts.entrySet()) {
-			log.warn("Conflicting file: {}", conflict.getKey());
-			String fullFileName = Paths.get(this.getWorkTree(), conflict.getKey()).toString();
-			remainingConflicts += resolver.resolve(fullFileName);
+	/**
+	 * Merges all commits into the current branch at once, using a tree reduction (pairwise merges in parallel,
+	 * resolving conflicts with the resolver at every level), the current branch moves to the root merge commit.
+	 * Returns the commits that have been dropped because of unresolved conflicts (sha and level of the tree)
+	 */
+	@SneakyThrows({ GitAPIException.class, IOException.class })
+	public Map<String, Integer> mergeTree(List<String> shas, List<String> titles, IConflictResolver resolver) {
+		log.debug("Tree merge of {} commits", shas.size());
+		ObjectId head = getCommitId(Constants.HEAD);
+		List<ObjectId> commits = new ArrayList<>();
+		List<String> allTitles = new ArrayList<>();
+		commits.add(head); // the base is never dropped
+		allTitles.add("");
+		for (int i = 0; i < shas.size(); i++) {
+			commits.add(getCommitId(shas.get(i)));
+			allTitles.add(titles.get(i));
+		}
+		TreeMerger merger = new TreeMerger(git.getRepository(), getResolver(resolver));
+		ObjectId root = merger.merge(commits, allTitles);
+		Map<String, Integer> dropped = new LinkedHashMap<>();
+		for (Map.Entry<Integer, Integer> entry : merger.getDropped().entrySet())
+			dropped.put(shas.get(entry.getKey() - 1), entry.getValue());
+		if (!root.equals(head)) {
+			updateHead(root, head, "merge: tree of " + (shas.size() - dropped.size()) + " commits");
+			resetToHead(); // merges have been made in-core
+		}
+		return dropped;
+	}
+
+	/**
+	 * Merges the commits one after another in-core, without writing a commit for each merge (conflicts are
+	 * resolved with the resolver) and writes the result in a single commit (whose parents are the current
+	 * and the merged commits, or only the current commit if squash). Returns if each commit has been merged
+	 */
+	@SneakyThrows({ GitAPIException.class, IOException.class })
+	public List<Boolean> mergeSingle(List<String> shas, String message, IConflictResolver resolver) {
+		resolver = getResolver(resolver);
+		Repository repo = git.getRepository();
+		InCoreMerger merger = new InCoreMerger(repo);
+		List<Boolean> results = new ArrayList<>();
+		List<ObjectId> parents = new ArrayList<>();
+		ObjectId tree;
+		try (RevWalk walk = new RevWalk(repo)) {
+			RevCommit head = walk.parseCommit(getCommitId(Constants.HEAD));
+			parents.add(head);
+			tree = head.getTree();
+			for (String sha : shas) {
+				RevCommit commit = walk.parseCommit(getCommitId(sha));
+				// merges with the result of previous merges (not committed), the base is the merge base with
+				// the current commit as the updates are branched from it
+				RevCommit base = getMergeBase(walk, head, commit);
+				ObjectId merged = base == null ? null : merger.merge(tree, commit, base, resolver);
+				log.debug("Merge from {}, status: {}", sha, merged == null ? "CONFLICTING" : "MERGED");
+				results.add(merged != null);
+				if (merged != null) {
+					tree = merged;
+					if (!squash && !base.equals(commit)) // if equal, the commit is already merged
+						parents.add(commit);
+				}
+			}
+		}
+		if (results.contains(true)) {
+			commitInCore(tree, message, parents.toArray(new ObjectId[0]));
+			resetToHead();
+		}
+		return results;
+	}
+
+	/**
+	 * Fast path to merge commits that change different files: if the files changed by each commit (with respect
+	 * to its merge base with the current commit) are not changed by other commit nor by the current commit since
+	 * the merge base, the combined tree is the tree of the current commit with the changed files of each commit
+	 * laid over it, and it is written in a single commit (whose parents are the current and the merged commits,
+	 * or only the current commit if squash).
+	 * Returns false without any change if the files overlap (the commits must be merged as usual)
+	 */
+	@SneakyThrows({ GitAPIException.class, IOException.class })
+	public boolean mergeDisjoint(List<String> shas, String message) {
+		Repository repo = git.getRepository();
+		TreeMap<String, DirCacheEntry> changes = new TreeMap<>(); // null if the file is deleted
+		List<ObjectId> parents = new ArrayList<>();
+		try (RevWalk walk = new RevWalk(repo)) {
+			RevCommit head = walk.parseCommit(getCommitId(Constants.HEAD));
+			parents.add(head);
+			for (String sha : shas) {
+				RevCommit commit = walk.parseCommit(getCommitId(sha));
+				RevCommit base = getMergeBase(walk, head, commit);
+				if (base == null || !addDisjointChanges(repo, base, head, commit, changes))
+					return false;
+				if (!squash && !base.equals(commit)) // if equal, the commit is already merged
+					parents.add(commit);
+			}
+			log.debug("Merge of {} commits that change different files, files: {}", shas.size(), changes.size());
+			try (ObjectInserter inserter = repo.newObjectInserter(); ObjectReader reader = repo.newObjectReader()) {
+				DirCache index = DirCache.newInCore();
+				DirCacheBuilder builder = index.builder();
+				builder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, head.getTree());
+				builder.finish();
+				DirCacheEditor editor = index.editor();
+				for (Map.Entry<String, DirCacheEntry> entry : changes.entrySet()) {
+					DirCacheEntry change = entry.getValue();
+					if (change == null)
+						editor.add(new DirCacheEditor.DeletePath(entry.getKey()));
+					else
+						editor.add(new DirCacheEditor.PathEdit(change) {
+							@Override
+							public void apply(DirCacheEntry ent) {
+								ent.setFileMode(change.getFileMode());
+								ent.setObjectId(change.getObjectId());
+							}
+						});
+				}
+				editor.finish();
+				ObjectId tree = index.writeTree(inserter);
+				inserter.flush();
+				commitInCore(tree, message, parents.toArray(new ObjectId[0]));
+			}
+		}
+		resetToHead();
+		return true;
+	}
+
+	// Adds the files changed by the commit since the merge base, false if another commit
+	// or the current commit (head) have changed any of these files
+	private boolean addDisjointChanges(Repository repo, RevCommit base, RevCommit head, RevCommit commit,
+			TreeMap<String, DirCacheEntry> changes) throws IOException {
+		try (TreeWalk treeWalk = new TreeWalk(repo)) {
+			treeWalk.addTree(base.getTree());
+			treeWalk.addTree(head.getTree());
+			treeWalk.addTree(commit.getTree());
+			treeWalk.setRecursive(true);
+			treeWalk.setFilter(TreeFilter.ANY_DIFF);
+			while (treeWalk.next()) {
+				if (treeWalk.idEqual(0, 2) && treeWalk.getRawMode(0) == treeWalk.getRawMode(2))
+					continue; // changed only by the current commit
+				String path = treeWalk.getPathString();
+				if (isChangedPath(changes, path) || !treeWalk.idEqual(0, 1) || treeWalk.getRawMode(0) != treeWalk.getRawMode(1)) {
+					log.debug("File changed by more than one commit, can't merge as disjoint changes: {}", path);
+					return false;
+				}
+				DirCacheEntry change = null;
+				if (treeWalk.getRawMode(2) != 0) { // not deleted
+					change = new DirCacheEntry(path);
+					change.setFileMode(treeWalk.getFileMode(2));
+					change.setObjectId(treeWalk.getObjectId(2));
+				}
+				changes.put(path, change);
+			}
+		}
+		return true;
+	}
+
+	// A path collides with a changed path if they are equal or one is a folder that contains the other
+	// (e.g. a file x and a file x/y added by different commits)
+	private boolean isChangedPath(TreeMap<String, DirCacheEntry> changes, String path) {
+		if (changes.containsKey(path))
+			return true;
+		for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1))
+			if (changes.containsKey(path.substring(0, i)))
+				return true;
+		String child = changes.ceilingKey(path + "/");
+		return child != null && child.startsWith(path + "/");
+	}
+
+	// After moving the current branch with in-core merges, the index and work tree (if any) must match the new commit
+	private void resetToHead() throws GitAPIException {
+		if (isSparse())
+			restoreSparse();
+		else if (!inCore)
+			git.reset().setMode(ResetType.HARD).call();
+	}
+
+	/**
+	 * Trial merges of each commit with the current commit, in-core and in parallel, without changing
+	 * the repository: classifies each commit as clean, auto-resolvable (using the resolver) or conflicting,
+	 * so that only the commits that are known to apply need to be merged.
+	 * The resolution cache (if set) is only read: the trial merges do not record resolutions nor count hits
+	 */
+	@SneakyThrows(IOException.class)
+	public List<InCoreMerger.Status> tryMerges(List<String> shas, IConflictResolver resolver) {
+		IConflictResolver trialResolver = resolutionCache == null || resolver == null ? resolver
+				: resolutionCache.wrapReadOnly(resolver);
+		ObjectId head = getCommitId(Constants.HEAD);
+		InCoreMerger merger = new InCoreMerger(git.getRepository());
+		List<Future<InCoreMerger.Status>> futures = new ArrayList<>();
+		try {
+			for (String sha : shas) {
+				ObjectId commitId = getCommitId(sha);
+				futures.add(trialExecutor.submit(() -> merger.tryMerge(head, commitId, trialResolver)));
+			}
+			List<InCoreMerger.Status> statuses = new ArrayList<>();
+			for (Future<InCoreMerger.Status> future : futures)
+				statuses.add(Util.getResult(future, "trying merges"));
+			log.debug("Trial merges status: {}", statuses);
+			return statuses;
+		} finally {
+			for (Future<InCoreMerger.Status> future : futures) // pending if a trial merge failed
+				future.cancel(true);
+		}
+	}
+
+	// Resolves the conflicting regions of each file using the merge results (not the conflict markers
+	// written in the work tree), if all files are resolved, writes their resolved content and adds it to the index
+	@SneakyThrows(IOException.class)
+	private boolean resolveConflicts(MergeResult res, ResolveMerger merger, IConflictResolver resolver) {
+		Map<String, org.eclipse.jgit.merge.MergeResult<? extends Sequence>> results = new LinkedHashMap<>();
+		for (String path : new TreeSet<>(res.getConflicts().keySet())) {
+			log.warn("Conflicting file: {}", path);
+			org.eclipse.jgit.merge.MergeResult<? extends Sequence> result = merger.getMergeResults().get(path);
+			if (result == null) // not a conflict in the content of the file (e.g. modify/delete)
+				return false;
+			results.put(path, result);
+		}
+		// files are resolved in parallel, and written only if all files are resolved
+		Map<String, byte[]> resolved = new HunkResolver(resolver).resolveAll(results);
+		if (resolved.containsValue(null))
+			return false;
+		for (Map.Entry<String, byte[]> file : resolved.entrySet())
+			Files.write(Paths.get(this.getWorkTree(), file.getKey()), file.getValue());
+		stage(resolved);
+		return true;
+	}
+
+	// Default strategy of git merge (recursive) that keeps the merger to get the merge result of conflicting files
+	private static class RecordingMergeStrategy extends StrategyRecursive {
+		private ResolveMerger merger;
+
+		@Override
+		public ThreeWayMerger newMerger(Repository db) {
+			merger = (ResolveMerger) super.newMerger(db);
+			return merger;
+		}
+
+		@Override
+		public ThreeWayMerger newMerger(Repository db, boolean inCore) {
+			merger = (ResolveMerger) super.newMerger(db, inCore);
+			return merger;
+		}
+	}
+
+	/**
+	 * Merge without work tree, the conflicts are resolved on the blob content
+	 * and the merge commit includes the resolution (there is no separate commit to resolve);
+	 * if there are conflicts the branch is not changed
+	 */
+	@SneakyThrows(IOException.class)
+	private boolean mergeInCore(ObjectId commitId, String prTitle, IConflictResolver resolver) {
+		ObjectId head = getCommitId(Constants.HEAD);
+		// as git merge does, fast forward if the current commit is an ancestor of the merged one
+		try (RevWalk walk = new RevWalk(git.getRepository())) {
+			if (walk.isMergedInto(walk.parseCommit(commitId), walk.parseCommit(head))) {
+				log.debug("Merge status: ALREADY_UP_TO_DATE");
+				return true;
+			}
+			if (walk.isMergedInto(walk.parseCommit(head), walk.parseCommit(commitId))) {
+				log.debug("Merge status: FAST_FORWARD");
+				updateHead(commitId, head, "merge " + commitId.getName() + ": Fast-forward");
+				return true;
+			}
+		}
+		ObjectId tree = new InCoreMerger(git.getRepository()).merge(head, commitId, resolver);
+		log.debug("Merge status: {}", tree == null ? "CONFLICTING" : "MERGED");
+		if (tree == null)
+			return false;
+		commitInCore(tree, "Merge: " + prTitle, head, commitId);
+		return true;
+	}
+
+	// Writes a commit with the given tree and parents (first is the current) and moves the current branch to it
+	private void commitInCore(ObjectId tree, String message, ObjectId... parents) throws IOException {
+		ObjectId commitId = insertCommit(git.getRepository(), tree, message, parents);
+		updateHead(commitId, parents[0], "commit: " + message);
+	}
+
+	// Writes a commit with the given tree and parents in the repository (without moving any branch)
+	static ObjectId insertCommit(Repository repo, ObjectId tree, String message, ObjectId... parents)
+			throws IOException {
+		try (ObjectInserter inserter = repo.newObjectInserter()) {
+			CommitBuilder commit = new CommitBuilder();
+			PersonIdent ident = new PersonIdent(repo);
+			commit.setAuthor(ident);
+			commit.setCommitter(ident);
+			commit.setMessage(message);
+			commit.setTreeId(tree);
+			commit.setParentIds(parents);
+			ObjectId commitId = inserter.insert(commit);
+			inserter.flush();
+			return commitId;
+		}
+	}
+
+	private void updateHead(ObjectId newId, ObjectId oldId, String refLogMessage) throws IOException {
+		RefUpdate update = git.getRepository().updateRef(Constants.HEAD);
+		update.setNewObjectId(newId);
+		update.setExpectedOldObjectId(oldId);
+		update.setRefLogMessage(refLogMessage, false);
+		RefUpdate.Result result = update.update();
+		if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FAST_FORWARD && result != RefUpdate.Result.FORCED)
+			throw new ClientException("Can't update the current branch, result: " + result);
+	}
+
+	private ObjectId getTreeId(ObjectId commitId) throws IOException {
+		try (RevWalk walk = new RevWalk(git.getRepository())) {
+			RevCommit commit = walk.parseCommit(commitId);
+			return commit.getTree().getId();
 		}
-		return remainingConflicts == 0;
 	}
 
 	@SneakyThrows(IOException.class)
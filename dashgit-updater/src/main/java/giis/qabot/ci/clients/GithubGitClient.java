@@ -1,21 +1,34 @@
 package giis.qabot.ci.clients;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.kohsuke.github.GHCommit;
+import org.kohsuke.github.GHCompare;
 import org.kohsuke.github.GHFileNotFoundException;
 import org.kohsuke.github.GHIOException;
 import org.kohsuke.github.GHPullRequest;
 import org.kohsuke.github.GHPullRequest.MergeMethod;
 import org.kohsuke.github.GHRepository;
+import org.kohsuke.github.GHTreeBuilder;
 import org.kohsuke.github.GHUser;
 import org.kohsuke.github.GitHub;
 import org.kohsuke.github.GitHubBuilder;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
+import giis.qabot.ci.models.CommitDiff;
 import giis.qabot.ci.models.PullRequest;
+import giis.qabot.core.clients.HttpTransport;
 import giis.qabot.core.clients.RestClient;
 import giis.qabot.core.models.Util;
 import lombok.SneakyThrows;
@@ -26,8 +39,11 @@ import lombok.extern.slf4j.Slf4j;
  */
 @Slf4j
 public class GithubGitClient implements IGitClient {
-	private static final int AUTOMERGE_RETRY_COUNT = 8;
-	private static final int AUTOMERGE_RETRY_WAIT = 2000;
+	private static final int AUTOMERGE_TIMEOUT = 30000; // max millis to wait until automerge can be set
+	private static final int COMPARE_MAX_FILES = 300; // max number of files returned by a compare
+	private static final String EXECUTABLE_MODE = "100755";
+	private static final int PULL_REQUESTS_PER_QUERY = 50; // to keep the graphql queries small
+	private static final int COMMENTS_PER_MUTATION = 20; // each mutation counts for the secondary rate limits
 
 	private GithubGraphqlClient graphql; // api propio para buscar pull requests de multiples repos
 	private GitHub api; // api recomendada para github (org.kohsuke:github-api)
@@ -36,6 +52,7 @@ public class GithubGitClient implements IGitClient {
 	private String user; // usuario que se ha autenticado
 	private boolean isAdmin = false; // el usuario tiene privilegios de administrador
 	private String token; // needed for the set pr assignee fallback
+	private Map<String, String> nodeIds = new ConcurrentHashMap<>(); // ids graphql de repositorios, etiquetas y usuarios
 
 	// Cuando se debe comprobar el estado de una operacion (check mergeability o rebase)
 	// se debe hacer un poll, indica el numero maximo de veces que se comprueba y el delay entre cada una
@@ -46,15 +63,17 @@ public class GithubGitClient implements IGitClient {
 		if ("https://github.com".equals(url))
 			url = "https://api.github.com";
 		this.graphql = new GithubGraphqlClient(url, token);
-		this.api = getGhApi(user, token);
+		this.api = getGhApi(url, user, token);
 		this.user = user;
 		this.isAdmin = isAdmin;
 		this.token = token;
 	}
 
+	// Uses the same http transport (connection pool) than the graphql and rest requests to the api url
 	@SneakyThrows(IOException.class)
-	static GitHub getGhApi(String user, String token) {
-		return new GitHubBuilder().withOAuthToken(token, user).build();
+	static GitHub getGhApi(String url, String user, String token) {
+		return new GitHubBuilder().withOAuthToken(token, user)
+				.withConnector(new PooledGitHubConnector(HttpTransport.forUrl(url))).build();
 	}
 
 	/**
@@ -163,6 +182,7 @@ public class GithubGitClient implements IGitClient {
 				.repoName(projName)
 				.repoId(projNameWithOwner)
 				.prId(jsonpr.get("number").asLong())
+				.nodeId(jsonpr.has("id") ? jsonpr.get("id").asText() : null)
 				.isOpen("OPEN".equals(jsonpr.get("state").asText()))
 				.sourceBranch(jsonpr.get("headRefName").asText())
 				.targetBranch(jsonpr.get("baseRefName").asText())
@@ -199,6 +219,27 @@ public class GithubGitClient implements IGitClient {
 		return mapMergeRequest(repoId.split("/")[1], repoId, json);
 	}
 
+	/**
+	 * Obtiene varias pull requests existentes dado el id de proyecto y los ids de las prs,
+	 * usando una query graphql para cada bloque de PULL_REQUESTS_PER_QUERY prs
+	 */
+	@Override
+	public List<PullRequest> getPullRequests(String repoId, long[] prIds) {
+		List<PullRequest> prs = new ArrayList<>();
+		for (int first = 0; first < prIds.length; first += PULL_REQUESTS_PER_QUERY) {
+			long[] chunk = Arrays.copyOfRange(prIds, first, Math.min(first + PULL_REQUESTS_PER_QUERY, prIds.length));
+			JsonNode json = graphql.postGraphql(graphql.getPullRequestsQuery(repoId, chunk));
+			json = json.get("data").get("repository");
+			for (int i = 0; i < chunk.length; i++) {
+				JsonNode jsonpr = json.get("pr" + i);
+				if (jsonpr == null || jsonpr.isNull())
+					throw new ClientException("Pull request " + chunk[i] + " not found in repository " + repoId);
+				prs.add(mapMergeRequest(repoId.split("/")[1], repoId, jsonpr));
+			}
+		}
+		return prs;
+	}
+
 	/**
 	 * Inserta un comentario en una pull request
 	 */
@@ -211,7 +252,40 @@ public class GithubGitClient implements IGitClient {
 	}
 
 	/**
-	 * Crea una pull request dado el id o nombre de proyecto y los datos de la PR,
+	 * Inserta un comentario en cada una de las pull requests, usando una mutacion graphql
+	 * para cada bloque de COMMENTS_PER_MUTATION comentarios (con un alias para cada comentario).
+	 * Las pull requests de las que no se conoce el id graphql se comentan con el api rest
+	 */
+	@Override
+	public void addPullRequestComments(List<PullRequest> pullRequests, List<String> comments) {
+		List<String> prNodeIds = new ArrayList<>();
+		List<String> nodeComments = new ArrayList<>();
+		for (int i = 0; i < pullRequests.size(); i++) {
+			if (pullRequests.get(i).nodeId() == null) {
+				addPullRequestCommment(pullRequests.get(i), comments.get(i));
+			} else {
+				prNodeIds.add(pullRequests.get(i).nodeId());
+				nodeComments.add(comments.get(i));
+			}
+		}
+		for (int first = 0; first < prNodeIds.size(); first += COMMENTS_PER_MUTATION) {
+			int last = Math.min(first + COMMENTS_PER_MUTATION, prNodeIds.size());
+			JsonNode json = graphql.postGraphql(
+					graphql.getAddCommentsMutation(prNodeIds.subList(first, last), nodeComments.subList(first, last)));
+			JsonNode errors = json.get("errors");
+			if (errors != null)
+				throw new ClientException("Can't add comments to pull requests: " + errors.toString());
+			log.debug("Added {} comments to pull requests", last - first);
+		}
+	}
+
+	/**
+	 * Crea una pull request dado el id o nombre de proyecto y los datos de la PR.
+	 * Utiliza dos mutaciones graphql: la primera crea la pr y la segunda asigna el usuario y anyade las etiquetas;
+	 * el modelo se obtiene del resultado de las mutaciones sin volver a leer la pr.
+	 * Los ids graphql del repositorio, etiquetas y usuarios se obtienen una vez y se guardan en nodeIds.
+	 * Si alguno de los pasos de la segunda mutacion falla, se reintenta como antes de usar las mutaciones
+	 * (api rest para asignar y etiquetar). El automerge se establece de forma asincrona (setAutoMerge)
 	 */
 	@Override
 	@SneakyThrows
@@ -220,21 +294,102 @@ public class GithubGitClient implements IGitClient {
 			boolean squashOnMerge, boolean setAutoMerge) {
 		log.debug("Create github pull request, project: {}, source: {}, target: {}, title: {}, assignee: {}", projectId, sourceBranch,
 				targetBranch, title, assignee);
+		List<String> assignees = assignee != null && !"".equals(assignee) ? List.of(assignee) : List.of();
+		resolveNodeIds(projectId, labels, assignees);
+
+		JsonNode json = graphql.postGraphql(graphql.getCreatePullRequestMutation(
+				nodeIds.get("repository:" + projectId), targetBranch, sourceBranch, title, description));
+		if (json.get("errors") != null)
+			throw new ClientException("Can't create pull request: " + json.get("errors").toString());
+		JsonNode jsonpr = json.get("data").get("createPullRequest").get("pullRequest");
+		String prNodeId = jsonpr.get("id").asText();
+		int number = jsonpr.get("number").asInt();
+
+		// Actualiza con resto de valores necesarios (assignee y labels), solo los que tienen id
+		List<String> assigneeIds = getNodeIds("user:", assignees);
+		List<String> labelIds = getNodeIds("label:" + projectId + ":", labels);
+		JsonNode errors = null;
+		if (!assigneeIds.isEmpty() || !labelIds.isEmpty()) {
+			json = graphql.postGraphql(graphql.getCompletePullRequestMutation(prNodeId, assigneeIds, labelIds));
+			errors = json.get("errors");
+			JsonNode data = json.get("data");
+			// el modelo se toma del ultimo alias que ha devuelto la pr
+			if (data != null && data.hasNonNull("labels"))
+				jsonpr = data.get("labels").get("labelable");
+			else if (data != null && data.hasNonNull("assign"))
+				jsonpr = data.get("assign").get("assignable");
+		}
+		PullRequest pr = mapMergeRequest(projectId.split("/")[1], projectId, jsonpr);
+
+		// Fallbacks de los valores no establecidos por la mutacion
 		GHRepository repo = this.getRepository(projectId);
-		GHPullRequest ghpr = repo.createPullRequest(title, sourceBranch, targetBranch, description);
+		if (!assignees.isEmpty() && (assigneeIds.isEmpty() || hasError(errors, "assign"))) {
+			setAssignee(repo.getPullRequest(number), assignee);
+			pr.assignee(assignee);
+		}
+		List<String> missingLabels = new ArrayList<>();
+		for (String label : labels)
+			if (hasError(errors, "labels") || !nodeIds.containsKey("label:" + projectId + ":" + label))
+				missingLabels.add(label);
+		if (!missingLabels.isEmpty()) { // con el api rest se crean las etiquetas que no existen en el repositorio
+			log.debug("Add labels using the REST API: {}", missingLabels);
+			repo.getIssue(number).addLabels(missingLabels.toArray(new String[0]));
+			for (String label : missingLabels)
+				if (!pr.labels().contains(label))
+					pr.labels().add(label);
+		}
+		if (setAutoMerge)
+			setAutoMerge(projectId, number, prNodeId, title, description);
+		return pr;
+	}
 
-		// Actualiza con resto de valores necesarios (assignee y labels)
-		if (assignee != null && !"".equals(assignee))
-			setAssignee(ghpr, assignee);
+	// Obtiene y guarda los ids graphql del repositorio, etiquetas y usuarios que no se han obtenido antes
+	// (las etiquetas que no existen en el repositorio no tendran id)
+	private void resolveNodeIds(String projectId, List<String> labels, List<String> users) {
+		List<String> newLabels = new ArrayList<>();
+		for (String label : labels)
+			if (!nodeIds.containsKey("label:" + projectId + ":" + label))
+				newLabels.add(label);
+		List<String> newUsers = new ArrayList<>();
+		for (String login : users)
+			if (!nodeIds.containsKey("user:" + login))
+				newUsers.add(login);
+		if (nodeIds.containsKey("repository:" + projectId) && newLabels.isEmpty() && newUsers.isEmpty())
+			return;
+		JsonNode json = graphql.postGraphql(graphql.getNodeIdsQuery(projectId, newLabels, newUsers));
+		JsonNode data = json.get("data");
+		if (data == null || !data.hasNonNull("repository"))
+			throw new ClientException("Can't get repository " + projectId + ": " + json.get("errors"));
+		nodeIds.put("repository:" + projectId, data.get("repository").get("id").asText());
+		for (int i = 0; i < newLabels.size(); i++)
+			if (data.get("repository").hasNonNull("l" + i))
+				nodeIds.put("label:" + projectId + ":" + newLabels.get(i), data.get("repository").get("l" + i).get("id").asText());
+		for (int i = 0; i < newUsers.size(); i++)
+			if (data.hasNonNull("u" + i))
+				nodeIds.put("user:" + newUsers.get(i), data.get("u" + i).get("id").asText());
+		log.debug("Graphql ids of project {}, labels: {}, users: {}", projectId, newLabels, newUsers);
+	}
 
-		ghpr.addLabels(labels.toArray(new String[0]));
-		ghpr.refresh();
+	private List<String> getNodeIds(String keyPrefix, List<String> names) {
+		List<String> ids = new ArrayList<>();
+		for (String name : names)
+			if (nodeIds.containsKey(keyPrefix + name))
+				ids.add(nodeIds.get(keyPrefix + name));
+		return ids;
+	}
 
-		if (setAutoMerge)
-			setAutoMerge(ghpr.getNodeId(), title, description);
+	// Error de la mutacion en el alias indicado (el primer elemento del path), null si no hay error.
+	// Los errores sin path (pe. de sintaxis) afectan a todos los alias
+	private JsonNode getError(JsonNode errors, String alias) {
+		if (errors != null)
+			for (JsonNode error : errors)
+				if (!error.has("path") || alias.equals(error.get("path").get(0).asText()))
+					return error;
+		return null;
+	}
 
-		// obtengo el modelo de la pull request buscandola por su numero
-		return this.getPullRequest(projectId, ghpr.getNumber());
+	private boolean hasError(JsonNode errors, String alias) {
+		return getError(errors, alias) != null;
 	}
 	
 	private void setAssignee(GHPullRequest ghpr, String assignee) throws IOException {
@@ -268,26 +423,14 @@ public class GithubGitClient implements IGitClient {
 		}
 	}
 
-	private void setAutoMerge(String nodeId, String title, String description) throws InterruptedException {
+	// El automerge solo se puede establecer cuando github ha calculado el estado de mergeability de la pr,
+	// se establece de forma asincrona cuando este estado deja de ser UNKNOWN
+	private CompletableFuture<Boolean> setAutoMerge(String projectId, int number, String nodeId, String title,
+			String description) {
 		log.info("Set automerge to this pull request");
-		for (int i = 0; i <= AUTOMERGE_RETRY_COUNT; i++) { // NOSONAR for clarity
-			Thread.sleep(AUTOMERGE_RETRY_WAIT);
-			String result = trySetAutoMerge(nodeId, title, description);
-			if ("success".equals(result)) {
-				log.info("Automerge is set");
-				break;
-			} else if ("abort".equals(result) || "unknown".equals(result)) {
-				log.error("Can't set automerge");
-				return;
-			} else if ("retry".equals(result)) {
-				if (i == AUTOMERGE_RETRY_COUNT) {
-					log.error("Can't set automerge after {} retries", AUTOMERGE_RETRY_COUNT);
-					break;
-				} else {
-					log.info("Retry set automerge");
-				}
-			}
-		}
+		return AutoMergeScheduler.getShared().schedule(projectId + "#" + number,
+				() -> this.getPullRequest(projectId, number).canBeMerged() != null,
+				() -> trySetAutoMerge(nodeId, title, description), AUTOMERGE_TIMEOUT);
 	}
 
 	private String trySetAutoMerge(String nodeId, String title, String description) {
@@ -296,7 +439,7 @@ public class GithubGitClient implements IGitClient {
 		JsonNode errors = json.get("errors");
 		if (errors == null) {
 			log.debug("Success: {}", data);
-			return "success";
+			return AutoMergeScheduler.SUCCESS;
 		} else {
 			// May 12th, Issue #272: Some error messages do don't have the type field, check for null
 			String type = errors.get(0).get("type") == null ? "unknown" : errors.get(0).get("type").asText();
@@ -304,9 +447,9 @@ public class GithubGitClient implements IGitClient {
 			log.debug("Failure: {} {}", type, message);
 			// Check known conditions that prevent automerge to abort, if not, retry
 			if (message.contains("Auto merge is not allowed for this repository"))
-				return "abort";
+				return AutoMergeScheduler.ABORT;
 			else
-				return "retry";
+				return AutoMergeScheduler.RETRY;
 		}
 	}
 
@@ -371,4 +514,96 @@ public class GithubGitClient implements IGitClient {
 		return "mergeability_timeout"; // si se llega aqui no se ha podido determinar el estado
 	}
 
+	/**
+	 * Obtiene el sha del ultimo commit de una rama
+	 */
+	@Override
+	@SneakyThrows(IOException.class)
+	public String getBranchSha(String projectId, String branchName) {
+		return this.getRepository(projectId).getBranch(branchName).getSHA1();
+	}
+
+	/**
+	 * Compara el commit head con base, obteniendo la base de merge de ambos
+	 * y los ficheros cambiados por head desde la base de merge.
+	 * El api de github devuelve como maximo 300 ficheros, si se alcanza se considera incompleto
+	 */
+	@Override
+	@SneakyThrows(IOException.class)
+	public CommitDiff compareCommits(String projectId, String base, String head) {
+		GHCompare compare = this.getRepository(projectId).getCompare(base, head);
+		CommitDiff diff = new CommitDiff().mergeBase(compare.getMergeBaseCommit().getSHA1());
+		GHCommit.File[] files = compare.getFiles();
+		for (GHCommit.File file : files) {
+			diff.files().add(file.getFileName());
+			if (file.getPreviousFilename() != null) // renamed
+				diff.files().add(file.getPreviousFilename());
+		}
+		return diff.complete(files.length < COMPARE_MAX_FILES);
+	}
+
+	/**
+	 * Obtiene el contenido de un fichero en un commit, null si no existe
+	 */
+	@Override
+	@SneakyThrows(IOException.class)
+	public byte[] getFileContent(String projectId, String path, String sha) {
+		try (InputStream content = this.getRepository(projectId).getFileContent(path, sha).read()) {
+			return content.readAllBytes();
+		} catch (GHFileNotFoundException e) {
+			return null; // NOSONAR null indicates that the file does not exist
+		}
+	}
+
+	/**
+	 * Crea una rama con un nuevo commit sobre parentSha que cambia el contenido de los ficheros
+	 * indicados (si el contenido es null, borra el fichero), sin necesidad de clonar el repositorio.
+	 * Usa el api de git de github: crea el arbol a partir del de parentSha, el commit y la rama.
+	 * Devuelve el sha del commit creado
+	 */
+	@Override
+	@SneakyThrows(IOException.class)
+	public String createBranchCommit(String projectId, String branchName, String parentSha, String message,
+			Map<String, String> files, Set<String> newFiles) {
+		log.debug("Create branch {} with a commit, project: {}, parent: {}", branchName, projectId, parentSha);
+		GHRepository repo = this.getRepository(projectId);
+		// The tree api requires the mode of each file (to preserve executable files)
+		Map<String, String> modes = getFileModes(projectId, parentSha, files.keySet());
+		GHTreeBuilder tree = repo.createTree().baseTree(repo.getCommit(parentSha).getTree().getSha());
+		for (Map.Entry<String, String> file : files.entrySet()) {
+			if (file.getValue() == null)
+				tree.delete(file.getKey());
+			else
+				tree.add(file.getKey(), file.getValue(), EXECUTABLE_MODE.equals(modes.get(file.getKey())));
+		}
+		String treeSha = tree.create().getSha();
+		String commitSha = repo.createCommit().message(message).tree(treeSha).parent(parentSha).create().getSHA1();
+		repo.createRef("refs/heads/" + branchName, commitSha);
+		return commitSha;
+	}
+
+	// Mode (as octal string) of the indicated files in a commit, using a query with the tree of each folder
+	private Map<String, String> getFileModes(String projectId, String sha, Collection<String> paths) {
+		Map<String, String> modes = new HashMap<>();
+		List<String> folders = new ArrayList<>();
+		for (String path : paths) {
+			String folder = path.contains("/") ? path.substring(0, path.lastIndexOf('/')) : "";
+			if (!folders.contains(folder))
+				folders.add(folder);
+		}
+		if (folders.isEmpty())
+			return modes;
+		JsonNode json = graphql.postGraphql(graphql.getTreeEntriesQuery(projectId, sha, folders));
+		json = json.get("data").get("repository");
+		for (int i = 0; i < folders.size(); i++) {
+			JsonNode tree = json.get("f" + i);
+			if (tree == null || tree.isNull() || tree.get("entries") == null)
+				continue;
+			String prefix = "".equals(folders.get(i)) ? "" : folders.get(i) + "/";
+			for (JsonNode entry : tree.get("entries"))
+				modes.put(prefix + entry.get("name").asText(), Integer.toOctalString(entry.get("mode").asInt()));
+		}
+		return modes;
+	}
+
 }
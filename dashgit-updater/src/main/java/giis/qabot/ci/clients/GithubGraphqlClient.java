@@ -1,6 +1,8 @@
 package giis.qabot.ci.clients;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import org.springframework.http.ResponseEntity;
 
@@ -85,7 +87,7 @@ public class GithubGraphqlClient {
 				+ "  }\n}\n}\n}\n}\n}";
 	}
 	private String getPullRequestItemsFragment() {
-		return    "            title, body, url, number, \n" // NOSONAR to be backport compatible
+		return    "            id, title, body, url, number, \n" // NOSONAR to be backport compatible
 				+ "            state, mergeable\n"
 				+ "            baseRefName, headRefName, headRefOid\n"
 				+ "            labels (first: 6) {\n"
@@ -127,23 +129,156 @@ public class GithubGraphqlClient {
 				+ "  }\n}\n}";
 	}
 	
+	/**
+	 * Obtencion de las entradas (nombre y modo) de los arboles de varias carpetas en un commit,
+	 * usando un alias fn para la carpeta n (la carpeta raiz es el string vacio)
+	 */
+	public String getTreeEntriesQuery(String repoId, String sha, List<String> folders) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < folders.size(); i++)
+			sb.append("    f" + i + ": object(expression: \"" + sha + ":" + folders.get(i) + "\") {\n"
+					+ "      ... on Tree { entries { name, mode } }\n"
+					+ "    }\n");
+		return "{\n" // NOSONAR to be backport compatible
+				+    getRepositoryQueryHeader(repoId) + " {\n"
+				+    sb.toString()
+				+ "  }\n}";
+	}
+
+	/**
+	 * Obtencion de varias pull requests dado el repo id (owner/repo) y los ids de las prs,
+	 * usando un alias prn para la pr en la posicion n
+	 */
+	public String getPullRequestsQuery(String repoId, long[] prIds) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < prIds.length; i++)
+			sb.append("    pr" + i + ": pullRequest(number: " + prIds[i] + ") {\n"
+					+      getPullRequestItemsFragment()
+					+ "    }\n");
+		return "{\n" // NOSONAR to be backport compatible
+				+    getRepositoryQueryHeader(repoId) + " {\n"
+				+    sb.toString()
+				+ "  }\n}";
+	}
+
 	// Issue #272: Los breaking changes del api (12 Mayo 2026) causan fallo en el formateo de la query
-	// cuando los que contienen salto de linea (\n). 
-	// Utiliza strings multilinea con tres comillas que ahora son soportados por GraphQL 
+	// cuando los que contienen salto de linea (\n).
+	// Los valores se escriben como strings escapados (quote), sin saltos de linea en la query
 	public String getAutoMergeQuery (String nodeId, String commitHeadline, String commitBody) {
-    String escapedHeadline = commitHeadline.replace("\"\"\"", "\\\"\\\"\\\"");
-    String escapedBody = commitBody.replace("\"\"\"", "\\\"\\\"\\\"");
     String query = "mutation MyMutation {\n"
         + "  enablePullRequestAutoMerge(input: {"
         + " pullRequestId: \"" + nodeId + "\","
         + " mergeMethod: SQUASH,"
-        + " commitHeadline: \"\"\"" + escapedHeadline + "\"\"\","
-        + " commitBody: \"\"\"" + escapedBody + "\"\"\""
+        + " commitHeadline: " + quote(commitHeadline) + ","
+        + " commitBody: " + quote(commitBody)
         + " }) { clientMutationId }"
         + "}";
 		return query;
 	}
 
+	/**
+	 * Obtencion de los ids graphql de un repositorio (owner/repo), de sus etiquetas indicadas
+	 * (alias ln para la etiqueta en la posicion n, nulo si no existe) y de los usuarios indicados
+	 * (alias un para el usuario en la posicion n)
+	 */
+	public String getNodeIdsQuery(String repoId, List<String> labels, List<String> users) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < labels.size(); i++)
+			sb.append("    l" + i + ": label(name: " + quote(labels.get(i)) + ") { id }\n");
+		StringBuilder usb = new StringBuilder();
+		for (int i = 0; i < users.size(); i++)
+			usb.append("  u" + i + ": user(login: " + quote(users.get(i)) + ") { id }\n");
+		return "{\n" // NOSONAR to be backport compatible
+				+ "  " + getRepositoryQueryHeader(repoId) + " {\n"
+				+ "    id\n"
+				+    sb.toString()
+				+ "  }\n"
+				+    usb.toString()
+				+ "}";
+	}
+
+	/**
+	 * Mutacion que crea una pull request en el repositorio con el id graphql indicado,
+	 * devolviendo la pull request creada con los mismos campos que getPullRequestQuery
+	 */
+	public String getCreatePullRequestMutation(String repoNodeId, String baseRef, String headRef, String title,
+			String body) {
+		return "mutation CreatePullRequest {\n"
+				+ "  createPullRequest(input: {"
+				+ " repositoryId: \"" + repoNodeId + "\","
+				+ " baseRefName: " + quote(baseRef) + ","
+				+ " headRefName: " + quote(headRef) + ","
+				+ " title: " + quote(title) + ","
+				+ " body: " + quote(body)
+				+ " }) {\n"
+				+ "    pullRequest {\n"
+				+        getPullRequestItemsFragment()
+				+ "  }\n}\n}";
+	}
+
+	/**
+	 * Mutacion que completa una pull request recien creada: asigna los usuarios (alias assign)
+	 * y anyade las etiquetas (alias labels).
+	 * Cada alias devuelve la pull request con los mismos campos que getPullRequestQuery
+	 */
+	public String getCompletePullRequestMutation(String prNodeId, List<String> assigneeIds, List<String> labelIds) {
+		StringBuilder sb = new StringBuilder("mutation CompletePullRequest {\n");
+		if (!assigneeIds.isEmpty())
+			sb.append("  assign: addAssigneesToAssignable(input: {"
+					+ " assignableId: \"" + prNodeId + "\", assigneeIds: " + quoteAll(assigneeIds) + " }) {\n"
+					+ "    assignable { ... on PullRequest {\n" + getPullRequestItemsFragment() + "  }\n}\n}\n");
+		if (!labelIds.isEmpty())
+			sb.append("  labels: addLabelsToLabelable(input: {"
+					+ " labelableId: \"" + prNodeId + "\", labelIds: " + quoteAll(labelIds) + " }) {\n"
+					+ "    labelable { ... on PullRequest {\n" + getPullRequestItemsFragment() + "  }\n}\n}\n");
+		return sb.append("}").toString();
+	}
+
+	// String graphql en una linea
+	// String graphql entre comillas, con las mismas secuencias de escape que json: barra invertida, comillas
+	// y caracteres de control (los saltos de linea se escriben como \n, ver Issue #272 en getAutoMergeQuery)
+	private String quote(String value) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '\\' || c == '"')
+				sb.append('\\').append(c);
+			else if (c == '\n')
+				sb.append("\\n");
+			else if (c == '\r')
+				sb.append("\\r");
+			else if (c == '\t')
+				sb.append("\\t");
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	private String quoteAll(List<String> values) {
+		List<String> quoted = new ArrayList<>();
+		for (String value : values)
+			quoted.add(quote(value));
+		return "[" + String.join(", ", quoted) + "]";
+	}
+
+	/**
+	 * Mutacion que anyade un comentario a cada uno de los nodos indicados (pull requests o issues),
+	 * usando un alias cn para el comentario en la posicion n.
+	 * Como en getAutoMergeQuery, los comentarios se escriben como strings escapados
+	 */
+	public String getAddCommentsMutation(List<String> nodeIds, List<String> comments) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < nodeIds.size(); i++) {
+			sb.append("  c" + i + ": addComment(input: {"
+					+ " subjectId: \"" + nodeIds.get(i) + "\","
+					+ " body: " + quote(comments.get(i))
+					+ " }) { clientMutationId }\n");
+		}
+		return "mutation AddComments {\n" + sb.toString() + "}";
+	}
+
 	/**
 	 * Encierra una query graphql en un json a utilizar en un post.
 	 * Utiliza jackson para evitar requerir escape de comillas dobles
@@ -1,19 +1,38 @@
 package giis.qabot.ci.clients;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang3.math.NumberUtils;
 import org.gitlab4j.api.GitLabApi;
 import org.gitlab4j.api.GitLabApiException;
 import org.gitlab4j.api.models.AcceptMergeRequestParams;
+import org.gitlab4j.api.models.Commit;
+import org.gitlab4j.api.models.CommitAction;
+import org.gitlab4j.api.models.CommitPayload;
+import org.gitlab4j.api.models.CompareResults;
+import org.gitlab4j.api.models.Diff;
 import org.gitlab4j.api.models.MergeRequest;
 import org.gitlab4j.api.models.MergeRequestFilter;
 import org.gitlab4j.api.models.MergeRequestParams;
+import org.gitlab4j.api.models.Project;
 import org.gitlab4j.models.Constants.MergeRequestScope;
 import org.gitlab4j.models.Constants.MergeRequestState;
 
+import giis.qabot.ci.models.CommitDiff;
 import giis.qabot.ci.models.PullRequest;
+import giis.qabot.core.clients.HttpTransport;
+import giis.qabot.core.clients.RateLimiter;
 import giis.qabot.core.models.Util;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -32,8 +51,11 @@ public class GitlabClient implements IGitClient {
 	public static final String MERGEABILITY_TIMEOUT = "mergeability_timeout";
 	public static final String REBASE_TIMEOUT = "rebase_timeout";
 
-	private static final int AUTOMERGE_RETRY_COUNT = 8;
-	private static final int AUTOMERGE_RETRY_WAIT = 4000;
+	private static final int AUTOMERGE_TIMEOUT = 40000; // max millis to wait until automerge can be set
+	// detailed merge status mientras gitlab prepara la merge request o calcula su estado
+	private static final List<String> AUTOMERGE_NOT_READY = List.of("unchecked", "checking", "preparing",
+			"approvals_syncing");
+	private static final int MAX_COMMENT_THREADS = 4; // notas enviadas en paralelo
 	//https://gitlab.com/gitlab-org/gitlab-foss/-/issues/55891
 	//flaky, https://forum.gitlab.com/t/how-to-toggle-merge-when-pipeline-succeeds-via-gitlab-api/15065/10
 	//review gitlab rest api https://docs.gitlab.com/api/merge_requests/#merge-a-merge-request: 
@@ -46,13 +68,25 @@ public class GitlabClient implements IGitClient {
 	// cache para la obtencion de un userId a partir del username, evitando llamadas repetidas al api para el mismo username
 	private String lastUsername = null;
 	private Long lastUserid = null;
+	// cache de los proyectos que tienen CI (las merge requests tendran pipeline)
+	private Map<String, Boolean> projectHasCi = new ConcurrentHashMap<>();
 	// Cuando se debe comprobar el estado de una operacion (check mergeability o rebase)
 	// se debe hacer un poll, indica el numero maximo de veces que se comprueba y el delay entre cada una
 	private int pollCheckLimit = 50;
 	private int pollCheckDelay = 500;
+	// limitador compartido con el resto de clientes del proveedor, gitlab4j no usa HttpTransport,
+	// por lo que las escrituras deben pasar por write
+	private RateLimiter rateLimiter;
+
+	// Peticion de escritura al api de gitlab
+	@FunctionalInterface
+	private interface GitlabWrite<T> {
+		T call() throws GitLabApiException;
+	}
 
 	public GitlabClient(String url, String user, String token, boolean isAdmin) {
 		this.api = new GitLabApi(url, token);
+		this.rateLimiter = HttpTransport.getRateLimiter(url);
 		this.user = user;
 		this.isAdmin = isAdmin;
 	}
@@ -86,6 +120,19 @@ public class GitlabClient implements IGitClient {
 		return this.isAdmin;
 	}
 
+	// Envia una peticion de escritura planificada con el token bucket del limitador. gitlab4j no expone
+	// las cabeceras RateLimit-* de las respuestas, pero si gitlab indica que se ha excedido el limite (429)
+	// se suspenden las peticiones al proveedor
+	private <T> T write(GitlabWrite<T> request) throws GitLabApiException {
+		rateLimiter.acquire(true);
+		try {
+			return request.call();
+		} catch (GitLabApiException e) {
+			rateLimiter.update(e.getHttpStatus(), name -> null);
+			throw e;
+		}
+	}
+
 	/**
 	 * Borra una rama (esto eliminara sus pull requests)
 	 */
@@ -106,7 +153,10 @@ public class GitlabClient implements IGitClient {
 	public void deleteBranchImpl(String projectId, String branchName) {
 		try {
 			log.debug("Deleting branch {} project {}", branchName, projectId);
-			api.getRepositoryApi().deleteBranch(projectId, branchName);
+			write(() -> {
+				api.getRepositoryApi().deleteBranch(projectId, branchName);
+				return null;
+			});
 		} catch (GitLabApiException e) {
 			if (!e.getMessage().contains("Branch Not Found"))
 				throw e;
@@ -141,6 +191,32 @@ public class GitlabClient implements IGitClient {
 		return mapMergeRequest(mr);
 	}
 
+	/**
+	 * Obtiene varias pull requests existentes dado el id de proyecto y los ids de las prs,
+	 * usando una unica consulta de merge requests filtrando por los iids
+	 */
+	@Override
+	@SneakyThrows(GitLabApiException.class)
+	public List<PullRequest> getPullRequests(String repoId, long[] prIds) {
+		List<Long> iids = new ArrayList<>();
+		for (long prId : prIds)
+			iids.add(prId);
+		MergeRequestFilter filter = new MergeRequestFilter().withProjectId(getProjectId(repoId)).withIids(iids);
+		List<MergeRequest> mrs = api.getMergeRequestApi().getMergeRequests(filter);
+		List<PullRequest> prs = new ArrayList<>();
+		for (long prId : prIds) { // same order than ids
+			MergeRequest mr = mrs.stream().filter(item -> item.getIid() == prId).findFirst()
+					.orElseThrow(() -> new ClientException("Merge request " + prId + " not found in project " + repoId));
+			prs.add(mapMergeRequest(mr));
+		}
+		return prs;
+	}
+
+	// The merge request filter requires the numeric id of the project
+	private Long getProjectId(String repoId) throws GitLabApiException {
+		return NumberUtils.isParsable(repoId) ? Long.parseLong(repoId) : api.getProjectApi().getProject(repoId).getId();
+	}
+
 	private Object asObject(String id) {
 		return NumberUtils.isParsable(id) ? Long.parseLong(id) : id;
 	}
@@ -151,7 +227,36 @@ public class GitlabClient implements IGitClient {
 	@Override
 	@SneakyThrows(GitLabApiException.class)
 	public void addPullRequestCommment(PullRequest pullRequest, String comment) {
-		api.getNotesApi().createMergeRequestNote(asObject(pullRequest.repoId()), pullRequest.prId(), comment, null, false);
+		write(() -> api.getNotesApi().createMergeRequestNote(asObject(pullRequest.repoId()), pullRequest.prId(),
+				comment, null, false));
+	}
+
+	/**
+	 * Inserta un comentario en cada una de las pull requests: gitlab no permite crear varias notas
+	 * en una peticion, por lo que se envian en paralelo, como cada nota es una escritura (write),
+	 * se reparten en el tiempo segun el token bucket del limitador del proveedor
+	 */
+	@Override
+	@SneakyThrows(IOException.class)
+	public void addPullRequestComments(List<PullRequest> pullRequests, List<String> comments) {
+		if (pullRequests.size() <= 1) {
+			for (int i = 0; i < pullRequests.size(); i++)
+				addPullRequestCommment(pullRequests.get(i), comments.get(i));
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(pullRequests.size(), MAX_COMMENT_THREADS));
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < pullRequests.size(); i++) {
+				PullRequest pullRequest = pullRequests.get(i);
+				String comment = comments.get(i);
+				futures.add(executor.submit(() -> addPullRequestCommment(pullRequest, comment)));
+			}
+			for (Future<?> future : futures)
+				Util.getResult(future, "adding comments to merge requests");
+		} finally {
+			executor.shutdownNow();
+		}
 	}
 
 	/**
@@ -171,33 +276,53 @@ public class GitlabClient implements IGitClient {
 				.withSquash(squashOnMerge);
 		if (assignee!=null && !"".equals(assignee))
 			params.withAssigneeId(getUserIdByName(assignee));
-		MergeRequest mr=api.getMergeRequestApi().createMergeRequest(asObject(projectId), params);
+		MergeRequest mr = write(() -> api.getMergeRequestApi().createMergeRequest(asObject(projectId), params));
 		String commitMessage = title + "\n\n" + description;
 		if (setAutoMerge)
 			this.setAutoMerge(projectId, mr.getIid(), commitMessage);
 		return mapMergeRequest(mr);
 	}
 	
-	@SneakyThrows
-	public void setAutoMerge(String projectId, Long mrIid, String commitMessage) {
-		// Si el automerge se ejecuta inmediatamente de la pr, aparece gitlab api
-		// exception 405 method not allowed
+	/**
+	 * Establece el automerge de forma asincrona, cuando gitlab ha terminado de preparar la merge request
+	 * y de comprobar su estado (si se establece inmediatamente tras crearla, aparece gitlab api
+	 * exception 405 method not allowed)
+	 */
+	public CompletableFuture<Boolean> setAutoMerge(String projectId, Long mrIid, String commitMessage) {
 		log.info("Set automerge to this pull request");
-		for (int i = 0; i <= AUTOMERGE_RETRY_COUNT; i++) { // NOSONAR for clarity
-			Thread.sleep(AUTOMERGE_RETRY_WAIT);
-			String result = trySetAutoMerge(projectId, mrIid, commitMessage);
-			if ("success".equals(result)) {
-				log.info("Automerge is set");
-				break;
-			} else if ("retry".equals(result)) {
-				if (i == AUTOMERGE_RETRY_COUNT) {
-					log.error("Can't set automerge after {} retries", AUTOMERGE_RETRY_COUNT);
-					break;
-				} else {
-					log.info("Retry set automerge");
-				}
-			}
+		return AutoMergeScheduler.getShared().schedule(projectId + "!" + mrIid,
+				() -> isReadyToAutoMerge(projectId, mrIid),
+				() -> trySetAutoMerge(projectId, mrIid, commitMessage), AUTOMERGE_TIMEOUT);
+	}
+
+	// Ademas del estado, si el proyecto tiene CI la merge request debe tener su pipeline
+	// (sin pipeline, merge_when_pipeline_succeeds puede hacer el merge inmediatamente o ser rechazado)
+	@SneakyThrows(GitLabApiException.class)
+	private boolean isReadyToAutoMerge(String projectId, Long mrIid) {
+		MergeRequest mr = api.getMergeRequestApi().getMergeRequest(asObject(projectId), mrIid);
+		String status = mr.getDetailedMergeStatus();
+		log.trace("Checking automerge readiness, status: {}, head pipeline: {}", status, mr.getHeadPipeline() != null);
+		if (status == null || AUTOMERGE_NOT_READY.contains(status))
+			return false;
+		return mr.getHeadPipeline() != null || !hasCi(projectId, mr.getSourceBranch());
+	}
+
+	// El proyecto tiene CI si tiene los jobs habilitados y el fichero de configuracion del CI
+	// (los ficheros externos a este proyecto, indicados con @ o url, se suponen existentes).
+	// Se guarda el resultado de cada proyecto para no repetir las llamadas al api en cada comprobacion
+	@SneakyThrows(GitLabApiException.class)
+	private boolean hasCi(String projectId, String ref) {
+		Boolean value = projectHasCi.get(projectId);
+		if (value == null) {
+			Project project = api.getProjectApi().getProject(asObject(projectId));
+			String path = project.getCiConfigPath() == null || "".equals(project.getCiConfigPath()) ? ".gitlab-ci.yml"
+					: project.getCiConfigPath();
+			value = !Boolean.FALSE.equals(project.getJobsEnabled()) && (path.contains("@") || path.contains("://")
+					|| api.getRepositoryFileApi().getOptionalFile(asObject(projectId), path, ref).isPresent());
+			log.debug("Project {} has CI: {}", projectId, value);
+			projectHasCi.put(projectId, value);
 		}
+		return value;
 	}
 
 	private String trySetAutoMerge(String projectId, Long mrIid, String commitMessage) {
@@ -205,11 +330,11 @@ public class GitlabClient implements IGitClient {
 			AcceptMergeRequestParams params = new AcceptMergeRequestParams()
 					.withSquashCommitMessage(commitMessage)
 					.withShouldRemoveSourceBranch(true).withSquash(true).withMergeWhenPipelineSucceeds(true);
-			api.getMergeRequestApi().acceptMergeRequest(projectId, mrIid, params);
-			return "success";
+			write(() -> api.getMergeRequestApi().acceptMergeRequest(projectId, mrIid, params));
+			return AutoMergeScheduler.SUCCESS;
 		} catch (GitLabApiException e) {
 			log.warn(e.getMessage());
-			return "retry";
+			return AutoMergeScheduler.RETRY;
 		}
 	}
 
@@ -301,7 +426,7 @@ public class GitlabClient implements IGitClient {
 		if (squash) // si hace squash pone en el commit el mensaje de la pr
 			params.withSquashCommitMessage(pr.title() + "\n\n" + pr.description());
 		// en Gitlab se habra indicado antes en la merge request que se hara squash
-		mr = api.getMergeRequestApi().acceptMergeRequest(pr.repoId(), pr.prId(), params);
+		mr = write(() -> api.getMergeRequestApi().acceptMergeRequest(pr.repoId(), pr.prId(), params));
 		return mapMergeRequest(mr);
 	}
 
@@ -325,7 +450,7 @@ public class GitlabClient implements IGitClient {
 		Long prId = mr.getIid();
 		logMr("Begin rebase MR:", mr);
 		String sha = mr.getSha();
-		mr = api.getMergeRequestApi().rebaseMergeRequest(projectId, prId);
+		mr = write(() -> api.getMergeRequestApi().rebaseMergeRequest(projectId, prId));
 		//Tras el rebase no basta con comprobar rebase in progress, 
 		//hay que esperar que el sha cambie, y comprobar de nuevo el estado de mergeability
 		//https://docs.gitlab.com/ee/api/merge_requests.html#single-merge-request-response-notes
@@ -352,4 +477,74 @@ public class GitlabClient implements IGitClient {
 				mr.getReferences().getFull(), mr.getIid(), mr.getTitle());
 	}
 
+	/**
+	 * Obtiene el sha del ultimo commit de una rama
+	 */
+	@Override
+	@SneakyThrows(GitLabApiException.class)
+	public String getBranchSha(String projectId, String branchName) {
+		return api.getRepositoryApi().getBranch(asObject(projectId), branchName).getCommit().getId();
+	}
+
+	/**
+	 * Compara el commit head con base, obteniendo la base de merge de ambos
+	 * y los ficheros cambiados por head desde la base de merge
+	 * (la comparacion no directa de gitlab obtiene los cambios desde la base de merge)
+	 */
+	@Override
+	@SneakyThrows(GitLabApiException.class)
+	public CommitDiff compareCommits(String projectId, String base, String head) {
+		Commit mergeBase = api.getRepositoryApi().getMergeBase(asObject(projectId), Arrays.asList(base, head));
+		CompareResults compare = api.getRepositoryApi().compare(asObject(projectId), base, head, false);
+		CommitDiff diff = new CommitDiff().mergeBase(mergeBase.getId())
+				.complete(!Boolean.TRUE.equals(compare.getCompareTimeout()));
+		for (Diff file : compare.getDiffs()) {
+			diff.files().add(file.getNewPath());
+			if (!file.getOldPath().equals(file.getNewPath())) // renamed
+				diff.files().add(file.getOldPath());
+		}
+		return diff;
+	}
+
+	/**
+	 * Obtiene el contenido de un fichero en un commit, null si no existe
+	 */
+	@Override
+	@SneakyThrows({ GitLabApiException.class, IOException.class })
+	public byte[] getFileContent(String projectId, String path, String sha) {
+		try (InputStream content = api.getRepositoryFileApi().getRawFile(asObject(projectId), sha, path)) {
+			return content.readAllBytes();
+		} catch (GitLabApiException e) {
+			if (e.getHttpStatus() == 404)
+				return null; // NOSONAR null indicates that the file does not exist
+			throw e;
+		}
+	}
+
+	/**
+	 * Crea una rama con un nuevo commit sobre parentSha que cambia el contenido de los ficheros
+	 * indicados (si el contenido es null, borra el fichero), sin necesidad de clonar el repositorio.
+	 * Usa el api de commits con multiples acciones, que crea la rama y el commit en una unica llamada.
+	 * Devuelve el sha del commit creado
+	 */
+	@Override
+	@SneakyThrows(GitLabApiException.class)
+	public String createBranchCommit(String projectId, String branchName, String parentSha, String message,
+			Map<String, String> files, Set<String> newFiles) {
+		log.debug("Create branch {} with a commit, project: {}, parent: {}", branchName, projectId, parentSha);
+		List<CommitAction> actions = new ArrayList<>();
+		for (Map.Entry<String, String> file : files.entrySet()) {
+			CommitAction action = new CommitAction().withFilePath(file.getKey());
+			if (file.getValue() == null)
+				action.withAction(CommitAction.Action.DELETE);
+			else // update keeps the file mode, but requires that the file exists in the parent
+				action.withAction(newFiles.contains(file.getKey())
+						? CommitAction.Action.CREATE : CommitAction.Action.UPDATE).withContent(file.getValue());
+			actions.add(action);
+		}
+		CommitPayload payload = new CommitPayload().withBranch(branchName).withStartSha(parentSha)
+				.withCommitMessage(message).withActions(actions);
+		return write(() -> api.getCommitsApi().createCommit(asObject(projectId), payload)).getId();
+	}
+
 }
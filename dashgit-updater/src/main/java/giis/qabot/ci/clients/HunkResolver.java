@@ -0,0 +1,139 @@
+package giis.qabot.ci.clients;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.Sequence;
+import org.eclipse.jgit.merge.MergeChunk;
+import org.eclipse.jgit.merge.MergeChunk.ConflictState;
+import org.eclipse.jgit.merge.MergeResult;
+
+import giis.qabot.core.models.Util;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Resolution of the conflicts of a file on the result of the jgit three-way merge: each conflicting
+ * region (hunk) is passed to an IConflictResolver, so that conflict markers are never written
+ * and parsed again. The content of the resolved file keeps the line terminators of the merged files.
+ * When there are several conflicting files, they can be resolved in parallel
+ * (the IConflictResolver must be thread-safe).
+ */
+@Slf4j
+public class HunkResolver {
+	private static final int MAX_THREADS = 4;
+	// Pool shared by all resolvers (the resolution of a file does not submit other tasks to the pool),
+	// daemon threads that do not prevent the exit of the updater
+	private static final ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS, runnable -> {
+		Thread thread = new Thread(runnable, "hunk-resolver");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private IConflictResolver resolver;
+
+	public HunkResolver(IConflictResolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Returns the content of the file resulting from the merge with all conflicts resolved,
+	 * or null if any conflict can't be resolved (or the merge result is not of text files)
+	 */
+	public byte[] resolve(String path, MergeResult<? extends Sequence> result) throws IOException {
+		List<RawText> sequences = new ArrayList<>();
+		for (Sequence sequence : result.getSequences()) {
+			if (!(sequence instanceof RawText))
+				return null;
+			sequences.add((RawText) sequence);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MergeChunk ours = null;
+		for (MergeChunk chunk : result) {
+			if (chunk.getConflictState() == ConflictState.NO_CONFLICT) {
+				writeLines(out, sequences.get(chunk.getSequenceIndex()), chunk.getBegin(), chunk.getEnd());
+			} else if (chunk.getConflictState() == ConflictState.FIRST_CONFLICTING_RANGE) {
+				ours = chunk;
+			} else if (chunk.getConflictState() == ConflictState.NEXT_CONFLICTING_RANGE
+					&& !resolveHunk(out, path, sequences, ours, chunk)) {
+				return null;
+			} // base of the conflict (diff3) is not used
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Resolves the conflicts of several files using a bounded pool of threads shared by all resolvers. Returns the content
+	 * of each resolved file in the same order than the merge results, with null for the files that
+	 * can't be resolved (same result than resolving each file sequentially)
+	 */
+	public Map<String, byte[]> resolveAll(Map<String, MergeResult<? extends Sequence>> results) throws IOException {
+		Map<String, byte[]> resolved = new LinkedHashMap<>();
+		if (results.size() <= 1) { // not worth a thread
+			for (Map.Entry<String, MergeResult<? extends Sequence>> result : results.entrySet())
+				resolved.put(result.getKey(), resolve(result.getKey(), result.getValue()));
+			return resolved;
+		}
+		Map<String, Future<byte[]>> futures = new LinkedHashMap<>();
+		try {
+			for (Map.Entry<String, MergeResult<? extends Sequence>> result : results.entrySet())
+				futures.put(result.getKey(), executor.submit(() -> resolve(result.getKey(), result.getValue())));
+			for (Map.Entry<String, Future<byte[]>> future : futures.entrySet())
+				resolved.put(future.getKey(), Util.getResult(future.getValue(), "resolving conflicts"));
+		} finally {
+			for (Future<byte[]> future : futures.values()) // pending if another has failed
+				future.cancel(true);
+		}
+		log.debug("Resolved files: {}, unresolved: {}", resolved.values().stream().filter(Objects::nonNull).count(),
+				resolved.values().stream().filter(Objects::isNull).count());
+		return resolved;
+	}
+
+	private boolean resolveHunk(ByteArrayOutputStream out, String path, List<RawText> sequences, MergeChunk ours,
+			MergeChunk theirs) throws IOException {
+		RawText oursText = sequences.get(ours.getSequenceIndex());
+		List<String> resolved = resolver.resolveHunk(path, getLines(oursText, ours),
+				getLines(sequences.get(theirs.getSequenceIndex()), theirs));
+		if (resolved == null) {
+			log.warn("Conflict can't be resolved in file: {}, lines: {}-{}", path, ours.getBegin() + 1, ours.getEnd());
+			return false;
+		}
+		// each resolved line takes the terminator of the line at our side
+		for (int i = 0; i < resolved.size(); i++) {
+			out.write(resolved.get(i).getBytes(StandardCharsets.UTF_8));
+			int line = ours.getBegin() + i;
+			if (line >= ours.getEnd() || !isLastWithoutNewline(oursText, line))
+				out.write('\n');
+		}
+		return true;
+	}
+
+	private List<String> getLines(RawText text, MergeChunk chunk) {
+		List<String> lines = new ArrayList<>();
+		for (int i = chunk.getBegin(); i < chunk.getEnd(); i++)
+			lines.add(text.getString(i));
+		return lines;
+	}
+
+	private void writeLines(ByteArrayOutputStream out, RawText text, int begin, int end) throws IOException {
+		for (int i = begin; i < end; i++) {
+			text.writeLine(out, i);
+			if (!isLastWithoutNewline(text, i))
+				out.write('\n');
+		}
+	}
+
+	private boolean isLastWithoutNewline(RawText text, int line) {
+		return line == text.size() - 1 && text.isMissingNewlineAtEnd();
+	}
+
+}
@@ -1,13 +1,14 @@
 package giis.qabot.ci.clients;
 
+import java.util.List;
+
 public interface IConflictResolver {
 
 	/**
-	 * Process each line in a file with merge conflicts produced by changes in
-	 * dependency versions; for each conflict, tries to resolve it to the higher
-	 * version. The conflicting file is overwritten to reflect the resolved
-	 * conflicts. Returns the number of remaining unresolved conflicts.
+	 * Resolves a single conflict found by a three-way merge, given the conflicting lines
+	 * at each side (without line terminators). Returns the lines of the resolution,
+	 * or null if the conflict can't be resolved.
 	 */
-	int resolve(String fileName);
+	List<String> resolveHunk(String fileName, List<String> ours, List<String> theirs);
 
 }
\ No newline at end of file
@@ -1,7 +1,10 @@
 package giis.qabot.ci.clients;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import giis.qabot.ci.models.CommitDiff;
 import giis.qabot.ci.models.PullRequest;
 
 public interface IGitClient {
@@ -37,11 +40,23 @@ public interface IGitClient {
 	 */
 	PullRequest getPullRequest(String repoId, long prId);
 
+	/**
+	 * Obtiene varias pull requests existentes dado el id de proyecto y los ids de las prs,
+	 * usando el minimo numero de llamadas al api. Se devuelven en el mismo orden que los ids
+	 */
+	List<PullRequest> getPullRequests(String repoId, long[] prIds);
+
 	/**
 	 * Inserta un comentario en una pull request
 	 */
 	void addPullRequestCommment(PullRequest pullRequest, String comment);
 
+	/**
+	 * Inserta un comentario en cada una de las pull requests (en la misma posicion de ambas listas),
+	 * usando el minimo numero de llamadas al api
+	 */
+	void addPullRequestComments(List<PullRequest> pullRequests, List<String> comments);
+
 	/**
 	 * Crea una pull request dado el id o nombre de proyecto y los datos de la PR,
 	 */
@@ -57,4 +72,29 @@ public interface IGitClient {
 	 */
 	PullRequest rebaseAndMerge(PullRequest pr, boolean squash);
 
-}
\ No newline at end of file
+	/**
+	 * Obtiene el sha del ultimo commit de una rama
+	 */
+	String getBranchSha(String projectId, String branchName);
+
+	/**
+	 * Compara el commit head con base, obteniendo la base de merge de ambos
+	 * y los ficheros cambiados por head desde la base de merge
+	 */
+	CommitDiff compareCommits(String projectId, String base, String head);
+
+	/**
+	 * Obtiene el contenido de un fichero en un commit, null si no existe
+	 */
+	byte[] getFileContent(String projectId, String path, String sha);
+
+	/**
+	 * Crea una rama con un nuevo commit sobre parentSha que cambia el contenido de los ficheros
+	 * indicados (si el contenido es null, borra el fichero), sin necesidad de clonar el repositorio.
+	 * newFiles indica los ficheros que no existen en parentSha (se crean en lugar de modificarse).
+	 * Devuelve el sha del commit creado
+	 */
+	String createBranchCommit(String projectId, String branchName, String parentSha, String message,
+			Map<String, String> files, Set<String> newFiles);
+
+}
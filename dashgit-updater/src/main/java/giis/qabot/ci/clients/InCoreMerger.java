@@ -0,0 +1,145 @@
+package giis.qabot.ci.clients;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.diff.Sequence;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.merge.MergeResult;
+import org.eclipse.jgit.merge.RecursiveMerger;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Three-way merge of two commits without a work tree: uses the jgit RecursiveMerger (as git merge,
+ * so that criss-cross histories with several merge bases are merged) with an in-core DirCache, so that only blobs and trees are written to the repository
+ * (that can be bare). If there are conflicts in the content of some files,
+ * tries to resolve each conflicting region of the merge result using an IConflictResolver.
+ * A trial merge only determines if the commits can be merged (with or without resolving conflicts),
+ * trial merges of different commits can run in parallel.
+ */
+@Slf4j
+public class InCoreMerger {
+	/**
+	 * Result of a trial merge
+	 */
+	public enum Status {
+		CLEAN, RESOLVABLE, CONFLICTING
+	}
+
+	private Repository repo;
+
+	public InCoreMerger(Repository repo) {
+		this.repo = repo;
+	}
+
+	/**
+	 * Merges the commits ours and theirs and returns the id of the resulting tree;
+	 * if there are conflicts, tries to resolve them using the resolver (if not null).
+	 * Returns null if any conflict remains.
+	 */
+	public ObjectId merge(AnyObjectId ours, AnyObjectId theirs, IConflictResolver resolver) throws IOException {
+		return merge(ours, theirs, null, resolver);
+	}
+
+	/**
+	 * Same as before, but using the indicated base (if not null) instead of the merge base of the commits,
+	 * so that ours can be a tree that has not been committed (e.g. the result of previous merges)
+	 */
+	public ObjectId merge(AnyObjectId ours, AnyObjectId theirs, AnyObjectId base, IConflictResolver resolver)
+			throws IOException {
+		CacheMerger merger = new CacheMerger(repo);
+		if (base != null)
+			merger.setBase(base);
+		if (merger.merge(ours, theirs))
+			return merger.getResultTreeId();
+		Map<String, MergeResult<? extends Sequence>> results = getConflicts(merger, resolver);
+		if (results == null)
+			return null;
+		// all files are resolved (in parallel) before writing any blob
+		Map<String, byte[]> resolved = new HunkResolver(resolver).resolveAll(results);
+		if (resolved.containsValue(null))
+			return null;
+		try (ObjectInserter inserter = repo.newObjectInserter()) {
+			ObjectId tree = resolveConflicts(merger.getDirCache(), resolved, inserter);
+			inserter.flush();
+			return tree;
+		}
+	}
+
+	/**
+	 * Trial merge of the commits ours and theirs, without creating the merged tree: determines if the merge
+	 * is clean, if all conflicts can be resolved using the resolver (if not null), or if conflicts remain.
+	 */
+	public Status tryMerge(AnyObjectId ours, AnyObjectId theirs, IConflictResolver resolver) throws IOException {
+		CacheMerger merger = new CacheMerger(repo);
+		if (merger.merge(false, ours, theirs)) // nothing to flush, the tree is not used
+			return Status.CLEAN;
+		Map<String, MergeResult<? extends Sequence>> results = getConflicts(merger, resolver);
+		if (results == null)
+			return Status.CONFLICTING;
+		// files are resolved sequentially, the parallelism is given by the trial merges of several commits
+		HunkResolver hunkResolver = new HunkResolver(resolver);
+		for (Map.Entry<String, MergeResult<? extends Sequence>> result : results.entrySet())
+			if (hunkResolver.resolve(result.getKey(), result.getValue()) == null)
+				return Status.CONFLICTING;
+		return Status.RESOLVABLE;
+	}
+
+	// Merge results of the conflicting files, null if there is no resolver or some conflict can't be resolved
+	private Map<String, MergeResult<? extends Sequence>> getConflicts(CacheMerger merger, IConflictResolver resolver) {
+		if (resolver == null || merger.getFailingPaths() != null)
+			return null;
+		// Only conflicts in the content of files can be resolved (not modify/delete, etc.)
+		Map<String, MergeResult<? extends Sequence>> results = new LinkedHashMap<>();
+		for (String path : merger.getUnmergedPaths()) {
+			log.warn("Conflicting file: {}", path);
+			if (!merger.getMergeResults().containsKey(path)) {
+				log.warn("Conflicting file can't be resolved: {}", path);
+				return null;
+			}
+			results.put(path, merger.getMergeResults().get(path));
+		}
+		return results;
+	}
+
+	// Creates a new tree with the merged entries (stage 0) plus the resolved content of the conflicting entries
+	private ObjectId resolveConflicts(DirCache source, Map<String, byte[]> resolved, ObjectInserter inserter)
+			throws IOException {
+		DirCache target = DirCache.newInCore();
+		DirCacheBuilder builder = target.builder();
+		for (int i = 0; i < source.getEntryCount(); i++) {
+			DirCacheEntry entry = source.getEntry(i);
+			if (entry.getStage() == DirCacheEntry.STAGE_0) {
+				builder.add(entry);
+			} else if (entry.getStage() == DirCacheEntry.STAGE_2) { // one entry (ours) per conflicting file
+				DirCacheEntry resolvedEntry = new DirCacheEntry(entry.getPathString());
+				resolvedEntry.setFileMode(entry.getFileMode());
+				resolvedEntry.setObjectId(inserter.insert(Constants.OBJ_BLOB, resolved.get(entry.getPathString())));
+				builder.add(resolvedEntry);
+			}
+		}
+		builder.finish();
+		return target.writeTree(inserter);
+	}
+
+	// Gives access to the DirCache where the merger leaves the merged and conflicting entries
+	private static class CacheMerger extends RecursiveMerger {
+		public CacheMerger(Repository repo) {
+			super(repo, true);
+		}
+
+		public DirCache getDirCache() {
+			return dircache;
+		}
+	}
+
+}
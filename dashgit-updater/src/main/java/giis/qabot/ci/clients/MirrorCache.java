@@ -0,0 +1,242 @@
+package giis.qabot.ci.clients;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.CredentialsProvider;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Local cache of bare mirrors of remote repositories, keyed by the remote url.
+ * The first use of a repository clones the mirror, next uses only fetch the changes,
+ * so that the working clones can borrow the objects from the mirror (git alternates)
+ * instead of downloading the full history every time.
+ *
+ * Each mirror is locked while it is created or fetched (a lock file to exclude other
+ * processes and a lock to exclude other threads). While the working clones of a process borrow
+ * the objects of a mirror, the process holds a shared lock of its use file. When the total size
+ * of the mirrors exceeds the maximum, the least recently used mirrors are evicted, excluding those that
+ * are in use by any process (eviction needs an exclusive lock of the use file).
+ *
+ * Working clones reference the objects of the mirror, so that they must not be removed while in use:
+ * the garbage collection and prune of the mirrors are disabled (jgit runs an automatic gc after fetch
+ * that would prune the objects of the branches removed by the fetch), a mirror is only removed as a whole by eviction.
+ */
+@Slf4j
+public class MirrorCache {
+	private static final String MIRROR_EXT = ".git";
+	private static final String LOCK_EXT = ".lock";
+	private static final String USE_EXT = ".use";
+	// Locks shared by all instances to exclude threads that use the same mirror (file locks are per process)
+	private static final Map<String, ReentrantLock> threadLocks = new ConcurrentHashMap<>();
+	// Mirrors borrowed by the working clones of this process (by path of the mirror), guarded by itself.
+	// Shared by all instances because a process can't hold overlapping locks of the same file
+	private static final Map<String, Borrow> borrows = new HashMap<>();
+
+	private String rootDir; // folder where mirrors are stored
+	private long maxSize; // max size in bytes of all mirrors before eviction (0 for no limit)
+
+	public MirrorCache(String rootDir, long maxSize) {
+		this.rootDir = rootDir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Creates or updates the mirror of the remote url and returns the path of its git directory.
+	 * The mirror is considered in use (will not be evicted by any process) until released.
+	 */
+	@SneakyThrows({ IOException.class, GitAPIException.class })
+	public String acquire(String url, CredentialsProvider credentials) {
+		String key = getKey(url);
+		File mirror = getMirrorDir(key);
+		borrow(key);
+		ReentrantLock threadLock = threadLocks.computeIfAbsent(mirror.getAbsolutePath(), k -> new ReentrantLock());
+		threadLock.lock();
+		try (FileChannel channel = openLockFile(key, LOCK_EXT)) {
+			channel.lock(); // released when the channel is closed
+			if (new File(mirror, "objects").exists()) {
+				log.debug("Fetch mirror of {} at {}", url, mirror);
+				try (Git git = Git.open(mirror)) {
+					disableGc(git.getRepository()); // mirrors created before this setting
+					git.fetch().setCredentialsProvider(credentials).setRemoveDeletedRefs(true).call();
+				}
+			} else {
+				log.debug("Create mirror of {} at {}", url, mirror);
+				FileUtils.deleteDirectory(mirror); // in case of a previous failed clone
+				try (Git git = Git.cloneRepository().setURI(url).setDirectory(mirror).setMirror(true)
+						.setCredentialsProvider(credentials).call()) {
+					disableGc(git.getRepository());
+				}
+			}
+			touch(key);
+		} catch (IOException | GitAPIException | RuntimeException e) {
+			release(url);
+			throw e;
+		} finally {
+			threadLock.unlock();
+		}
+		evict();
+		return mirror.getAbsolutePath();
+	}
+
+	/**
+	 * Indicates that a working clone of this process does not use the mirror anymore
+	 */
+	@SneakyThrows(IOException.class)
+	public void release(String url) {
+		String path = getMirrorDir(getKey(url)).getAbsolutePath();
+		Borrow borrow;
+		synchronized (borrows) {
+			borrow = borrows.get(path);
+		}
+		if (borrow != null)
+			release(path, borrow);
+	}
+
+	private void release(String path, Borrow borrow) throws IOException {
+		synchronized (borrows) {
+			if (--borrow.count > 0)
+				return;
+			borrows.remove(path);
+		}
+		synchronized (borrow) { // waits if other thread is still taking the lock
+			if (borrow.channel != null)
+				borrow.channel.close(); // releases the shared lock
+		}
+	}
+
+	// The first working clone of this process that borrows the mirror takes a shared lock of the use file
+	// (waits if other process is evicting the mirror). The borrow is recorded before waiting for the lock,
+	// the wait only blocks the threads that borrow the same mirror (a process can't lock a file twice)
+	private void borrow(String key) throws IOException {
+		String path = getMirrorDir(key).getAbsolutePath();
+		Borrow borrow;
+		synchronized (borrows) {
+			borrow = borrows.computeIfAbsent(path, k -> new Borrow());
+			borrow.count++;
+		}
+		try {
+			synchronized (borrow) {
+				if (borrow.channel == null)
+					borrow.channel = lockShared(key);
+			}
+		} catch (IOException | RuntimeException e) {
+			release(path, borrow);
+			throw e;
+		}
+	}
+
+	private FileChannel lockShared(String key) throws IOException {
+		FileChannel channel = openLockFile(key, USE_EXT);
+		try {
+			channel.lock(0, Long.MAX_VALUE, true);
+			return channel;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes the least recently used mirrors that are not in use until the total
+	 * size of the cache is under the maximum
+	 */
+	@SneakyThrows(IOException.class)
+	public synchronized void evict() {
+		if (maxSize <= 0)
+			return;
+		List<File> mirrors = new ArrayList<>();
+		long totalSize = 0;
+		File[] files = new File(rootDir).listFiles((dir, name) -> name.endsWith(MIRROR_EXT));
+		for (File mirror : files == null ? new File[0] : files) {
+			mirrors.add(mirror);
+			totalSize += FileUtils.sizeOfDirectory(mirror);
+		}
+		mirrors.sort(Comparator.comparingLong(mirror -> getLockFile(getKeyOfMirror(mirror), LOCK_EXT).lastModified()));
+		for (File mirror : mirrors) {
+			if (totalSize <= maxSize)
+				break;
+			totalSize -= evict(mirror);
+		}
+	}
+
+	// Removes a mirror if it is not in use by any process, returning the size of the removed mirror (0 if not removed)
+	private long evict(File mirror) throws IOException {
+		String key = getKeyOfMirror(mirror);
+		synchronized (borrows) {
+			if (borrows.containsKey(mirror.getAbsolutePath())) // used by this process
+				return 0;
+			try (FileChannel channel = openLockFile(key, USE_EXT)) {
+				if (channel.tryLock() == null) // used by other process, released when the channel is closed
+					return 0;
+				long size = FileUtils.sizeOfDirectory(mirror);
+				log.debug("Evict mirror {}, size: {}", mirror, size);
+				FileUtils.deleteDirectory(mirror);
+				return size;
+			}
+		}
+	}
+
+	// The key identifies the remote repository, removing characters that are not allowed in file names
+	private String getKey(String url) {
+		return url.replaceAll("^[a-z]+://", "").replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	private String getKeyOfMirror(File mirror) {
+		String name = mirror.getName();
+		return name.substring(0, name.length() - MIRROR_EXT.length());
+	}
+
+	private File getMirrorDir(String key) {
+		return new File(rootDir, key + MIRROR_EXT);
+	}
+
+	private File getLockFile(String key, String extension) {
+		return new File(rootDir, key + extension);
+	}
+
+	private FileChannel openLockFile(String key, String extension) throws IOException {
+		FileUtils.forceMkdir(new File(rootDir));
+		return new RandomAccessFile(getLockFile(key, extension), "rw").getChannel(); // NOSONAR closed by the caller
+	}
+
+	// Objects of the mirror must be kept while they are borrowed (no gc after fetch, nor gc or prune by other tools)
+	private void disableGc(Repository repo) throws IOException {
+		StoredConfig config = repo.getConfig();
+		config.setBoolean("fetch", null, ConfigConstants.CONFIG_KEY_AUTOGC, false);
+		config.setInt(ConfigConstants.CONFIG_GC_SECTION, null, ConfigConstants.CONFIG_KEY_AUTO, 0);
+		config.setString(ConfigConstants.CONFIG_GC_SECTION, null, ConfigConstants.CONFIG_KEY_PRUNEEXPIRE, "never");
+		config.save();
+	}
+
+	// The last modification of the lock file records the last use of the mirror
+	private void touch(String key) {
+		if (!getLockFile(key, LOCK_EXT).setLastModified(System.currentTimeMillis()))
+			log.warn("Can't set the last use of the mirror {}", key);
+	}
+
+	// Lock file of a mirror held by this process (null until locked, guarded by the borrow)
+	// and the number of working clones that borrow the mirror (guarded by borrows)
+	private static class Borrow {
+		private FileChannel channel;
+		private int count;
+	}
+
+}
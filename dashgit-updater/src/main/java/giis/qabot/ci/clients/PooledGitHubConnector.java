@@ -0,0 +1,83 @@
+package giis.qabot.ci.clients;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.entity.InputStreamEntity;
+import org.kohsuke.github.connector.GitHubConnector;
+import org.kohsuke.github.connector.GitHubConnectorRequest;
+import org.kohsuke.github.connector.GitHubConnectorResponse;
+
+import giis.qabot.core.clients.HttpTransport;
+
+/**
+ * Conector del api de github (org.kohsuke:github-api) que envia las peticiones
+ * usando el transporte http compartido (pool de conexiones) en lugar del conector por defecto
+ */
+public class PooledGitHubConnector implements GitHubConnector {
+	private HttpTransport transport;
+
+	public PooledGitHubConnector(HttpTransport transport) {
+		this.transport = transport;
+	}
+
+	@Override
+	public GitHubConnectorResponse send(GitHubConnectorRequest request) throws IOException {
+		HttpUriRequestBase httpRequest;
+		try {
+			httpRequest = new HttpUriRequestBase(request.method(), request.url().toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+		for (Map.Entry<String, List<String>> header : request.allHeaders().entrySet())
+			for (String value : header.getValue())
+				httpRequest.addHeader(header.getKey(), value);
+		if (request.hasBody())
+			httpRequest.setEntity(new InputStreamEntity(request.body(),
+					request.contentType() == null ? null : ContentType.parse(request.contentType())));
+		ClassicHttpResponse response = transport.getClient().executeOpen(null, httpRequest, null);
+		Map<String, List<String>> headers = new LinkedHashMap<>();
+		for (Header header : response.getHeaders())
+			headers.computeIfAbsent(header.getName(), name -> new ArrayList<>()).add(header.getValue());
+		return new PooledResponse(request, response, headers);
+	}
+
+	// The body is buffered by ByteArrayResponse, because github-api can read it more than once
+	// (e.g. to compose the message of the exceptions and in retries).
+	// The response must be closed to return the connection to the pool
+	private static class PooledResponse extends GitHubConnectorResponse.ByteArrayResponse {
+		private ClassicHttpResponse response;
+
+		private PooledResponse(GitHubConnectorRequest request, ClassicHttpResponse response,
+				Map<String, List<String>> headers) {
+			super(request, response.getCode(), headers);
+			this.response = response;
+		}
+
+		@Override
+		protected InputStream rawBodyStream() throws IOException {
+			HttpEntity entity = response.getEntity();
+			return entity == null ? null : entity.getContent();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				response.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,216 @@
+package giis.qabot.ci.clients;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Cache of the resolutions of conflicts (as git rerere): the same conflicts appear again and again
+ * (e.g. the same properties of a pom.xml updated by the same group of dependabot PRs in many runs and repos),
+ * so that the resolution of each conflict is recorded and applied when the conflict appears again.
+ * Conflicts that could not be resolved are also recorded, to skip them without trying to resolve again.
+ *
+ * The key of each conflict is a hash of the lines of both sides (normalized to ignore the trailing
+ * white spaces and carriage returns). A resolution is recorded as the side (ours or theirs) that
+ * is taken for each line, so that only resolutions that take the lines of the conflict can be recorded.
+ * The cache is bounded (the least recently used entries are evicted), and is persisted in a file
+ * that is loaded when the cache is created and written when it is saved.
+ */
+@Slf4j
+public class ResolutionCache {
+	private static final String UNRESOLVED = "!";
+	private static final char OURS = '<';
+	private static final char THEIRS = '>';
+
+	private File file; // null if not persisted
+	private Map<String, String> entries;
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates a cache with a max number of entries, loading the entries of the file (if not null and exists)
+	 */
+	@SneakyThrows(IOException.class)
+	public ResolutionCache(String fileName, int maxEntries) {
+		this.file = fileName == null ? null : new File(fileName);
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) { // access order to evict the least recently used
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				boolean remove = size() > maxEntries;
+				if (remove)
+					evictions.incrementAndGet();
+				return remove;
+			}
+		};
+		if (file != null && file.exists())
+			load();
+	}
+
+	/**
+	 * Returns a resolver that resolves each conflict using the recorded resolution, or the resolver
+	 * received as parameter if not recorded (and records its resolution)
+	 */
+	public IConflictResolver wrap(IConflictResolver resolver) {
+		return new CachedResolver(resolver, true);
+	}
+
+	/**
+	 * As wrap, but the cache is not changed: the resolutions of the resolver are not recorded
+	 * and hits and misses are not counted (e.g. to try merges before doing them)
+	 */
+	public IConflictResolver wrapReadOnly(IConflictResolver resolver) {
+		return new CachedResolver(resolver, false);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public String toString() {
+		return "entries: " + size() + ", hits: " + getHits() + ", misses: " + getMisses() + ", evictions: " + getEvictions();
+	}
+
+	/**
+	 * Writes the entries to the file (a temporary file that replaces the current one),
+	 * from the least to the most recently used
+	 */
+	@SneakyThrows(IOException.class)
+	public synchronized void save() {
+		if (file == null)
+			return;
+		List<String> lines = new ArrayList<>();
+		for (Map.Entry<String, String> entry : entries.entrySet())
+			lines.add(entry.getKey() + " " + entry.getValue());
+		FileUtils.forceMkdirParent(file.getAbsoluteFile());
+		Path temp = file.toPath().resolveSibling(file.getName() + ".tmp");
+		Files.write(temp, lines, StandardCharsets.UTF_8);
+		Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log.debug("Resolution cache saved to {}, {}", file, this);
+	}
+
+	private synchronized void load() throws IOException {
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			String[] fields = line.split(" ");
+			if (fields.length == 2) // ignores malformed lines
+				entries.put(fields[0], fields[1]);
+		}
+		log.debug("Resolution cache loaded from {}, entries: {}", file, entries.size());
+	}
+
+	private synchronized String get(String key) {
+		return entries.get(key);
+	}
+
+	private synchronized void put(String key, String value) {
+		entries.put(key, value);
+	}
+
+	// Resolution of a conflict as the side taken by each line, null if it takes other lines
+	static String encode(List<String> ours, List<String> theirs, List<String> resolved) {
+		if (resolved == null)
+			return UNRESOLVED;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < resolved.size(); i++)
+			if (i < ours.size() && resolved.get(i).equals(ours.get(i)))
+				sb.append(OURS);
+			else if (i < theirs.size() && resolved.get(i).equals(theirs.get(i)))
+				sb.append(THEIRS);
+			else
+				return null;
+		return sb.toString();
+	}
+
+	// Lines of the resolution of a conflict, null if can't be applied to the conflict
+	static List<String> decode(List<String> ours, List<String> theirs, String value) {
+		List<String> resolved = new ArrayList<>();
+		for (int i = 0; i < value.length(); i++) {
+			List<String> side = value.charAt(i) == OURS ? ours : theirs;
+			if (i >= side.size())
+				return null;
+			resolved.add(side.get(i));
+		}
+		return resolved;
+	}
+
+	@SneakyThrows(NoSuchAlgorithmException.class)
+	static String getKey(List<String> ours, List<String> theirs) {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		for (String line : ours)
+			digest.update((line.stripTrailing() + "\n").getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0); // separates both sides
+		for (String line : theirs)
+			digest.update((line.stripTrailing() + "\n").getBytes(StandardCharsets.UTF_8));
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	private class CachedResolver implements IConflictResolver {
+		private IConflictResolver resolver;
+		private boolean recording; // false for a read-only view of the cache
+
+		private CachedResolver(IConflictResolver resolver, boolean recording) {
+			this.resolver = resolver;
+			this.recording = recording;
+		}
+
+		@Override
+		public List<String> resolveHunk(String fileName, List<String> ours, List<String> theirs) {
+			String key = getKey(ours, theirs);
+			String value = get(key);
+			if (UNRESOLVED.equals(value)) {
+				count(hits);
+				log.debug("Conflict in file {} previously found unresolved", fileName);
+				return null;
+			}
+			List<String> resolved = value == null ? null : decode(ours, theirs, value);
+			if (resolved != null) {
+				count(hits);
+				log.debug("Conflict in file {} resolved from the cache", fileName);
+				return resolved;
+			}
+			count(misses);
+			resolved = resolver.resolveHunk(fileName, ours, theirs);
+			value = encode(ours, theirs, resolved);
+			if (value != null && recording)
+				put(key, value);
+			return resolved;
+		}
+
+		private void count(AtomicLong counter) {
+			if (recording)
+				counter.incrementAndGet();
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+package giis.qabot.ci.clients;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+import giis.qabot.core.models.Util;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hierarchical merge of many commits (tree reduction): instead of a chain of merges where each one
+ * depends on the previous, the commits are merged pairwise in a balanced binary tree, and the merges
+ * of each level run in parallel (in-core, resolving conflicts with an IConflictResolver at every level).
+ * Each merge of two nodes writes a merge commit, so that all merged commits are reachable from the root.
+ *
+ * When the merge of two nodes has conflicts that can't be resolved, the commits of the right node
+ * are merged one by one into the left node, and the commits that still conflict are dropped
+ * (the level where each commit is dropped is recorded). The first commit (the base) is never dropped.
+ */
+@Slf4j
+public class TreeMerger {
+	private Repository repo;
+	private IConflictResolver resolver;
+	private List<ObjectId> commits;
+	private List<String> titles;
+	private Map<Integer, Integer> dropped = new ConcurrentHashMap<>(); // index of commit -> level
+
+	public TreeMerger(Repository repo, IConflictResolver resolver) {
+		this.repo = repo;
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Merges all commits (the first one is the base, e.g. the current commit of the branch) and
+	 * returns the id of the root commit that includes all commits that are not dropped.
+	 * Titles are used to compose the messages of the merge commits.
+	 */
+	public ObjectId merge(List<ObjectId> commits, List<String> titles) throws IOException {
+		this.commits = commits;
+		this.titles = titles;
+		dropped.clear();
+		List<Node> nodes = new ArrayList<>();
+		for (int i = 0; i < commits.size(); i++)
+			nodes.add(new Node(commits.get(i), List.of(i)));
+		int threads = Math.max(1, Math.min(commits.size() / 2, Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int level = 1; nodes.size() > 1; level++) {
+				int currentLevel = level;
+				List<Future<Node>> futures = new ArrayList<>();
+				for (int i = 0; i + 1 < nodes.size(); i += 2) {
+					Node left = nodes.get(i);
+					Node right = nodes.get(i + 1);
+					futures.add(executor.submit(() -> mergeNodes(left, right, currentLevel)));
+				}
+				List<Node> next = new ArrayList<>();
+				for (Future<Node> future : futures)
+					next.add(Util.getResult(future, "merging"));
+				if (nodes.size() % 2 == 1) // odd node goes to the next level
+					next.add(nodes.get(nodes.size() - 1));
+				log.debug("Tree merge level {}, nodes: {}, dropped: {}", level, next.size(), dropped.size());
+				nodes = next;
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return nodes.get(0).commit;
+	}
+
+	/**
+	 * Commits that have been dropped because of conflicts (index of the commit and level of the tree)
+	 */
+	public Map<Integer, Integer> getDropped() {
+		return new TreeMap<>(dropped);
+	}
+
+	private Node mergeNodes(Node left, Node right, int level) throws IOException {
+		InCoreMerger merger = new InCoreMerger(repo);
+		ObjectId tree = merger.merge(left.commit, right.commit, resolver);
+		if (tree != null)
+			return merged(left, right.commit, right.leaves, tree);
+		// conflicts between the nodes, merges each commit of the right node to drop only the conflicting ones
+		log.debug("Conflicts merging node with {} commits at level {}, merging each commit", right.leaves.size(), level);
+		Node node = left;
+		for (int leaf : right.leaves) {
+			tree = merger.merge(node.commit, commits.get(leaf), resolver);
+			if (tree == null) {
+				log.warn("Commit dropped at level {} of the tree merge: {}", level, titles.get(leaf));
+				dropped.put(leaf, level);
+			} else {
+				node = merged(node, commits.get(leaf), List.of(leaf), tree);
+			}
+		}
+		return node;
+	}
+
+	// New node with the merge commit of the left node and other commit (that includes the leaves)
+	private Node merged(Node left, ObjectId other, List<Integer> leaves, ObjectId tree) throws IOException {
+		List<String> merged = new ArrayList<>();
+		for (int leaf : leaves)
+			merged.add(titles.get(leaf));
+		List<Integer> allLeaves = new ArrayList<>(left.leaves);
+		allLeaves.addAll(leaves);
+		ObjectId commit = GitLocal.insertCommit(repo, tree, "Merge: " + String.join(", ", merged), left.commit, other);
+		return new Node(commit, allLeaves);
+	}
+
+	// Commit of a node of the tree and the indexes of the commits that it includes
+	private static class Node {
+		private ObjectId commit;
+		private List<Integer> leaves;
+
+		private Node(ObjectId commit, List<Integer> leaves) {
+			this.commit = commit;
+			this.leaves = leaves;
+		}
+	}
+
+}
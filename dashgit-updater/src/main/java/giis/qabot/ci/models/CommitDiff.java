@@ -0,0 +1,19 @@
+package giis.qabot.ci.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * Resultado de comparar un commit con otro a traves del api: la base de merge
+ * y los ficheros cambiados desde ella (en un renombrado, los nombres anterior y nuevo)
+ */
+@Accessors(fluent=true)
+public class CommitDiff {
+	@Getter @Setter private String mergeBase;
+	@Getter @Setter private List<String> files=new ArrayList<>();
+	@Getter @Setter private boolean complete=true; //false si el api no devuelve todos los ficheros
+}
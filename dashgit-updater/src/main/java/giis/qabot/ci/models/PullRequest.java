@@ -21,6 +21,7 @@ public class PullRequest {
 	@Getter @Setter private String repoName; // solo repo
 	@Getter @Setter private String repoId; //id unico (en github owner/repo, en gitlab un numero)
 	@Getter @Setter private long prId;
+	@Getter @Setter private String nodeId; // id global en el api graphql (solo github)
 	@Getter @Setter private boolean isOpen;
 	@Getter @Setter private Boolean canBeMerged=null; //null es indefinido
 	@Getter @Setter private String cantBeMergedReason=""; //explicacion adicional si no se puede hacer merge
@@ -0,0 +1,148 @@
+package giis.qabot.core.clients;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Transporte http compartido por todos los clientes que acceden a un mismo proveedor
+ * (identificado por el esquema, host y puerto de la url), para no establecer una conexion nueva
+ * (con su handshake tls) en cada peticion: mantiene un pool de conexiones persistentes (keep-alive)
+ * y acepta respuestas comprimidas con gzip (que son descomprimidas por el cliente).
+ * Proporciona el cliente http y un RestTemplate que lo utiliza, y las estadisticas del pool.
+ * Las conexiones son HTTP/1.1: el cliente clasico de httpclient5 (que usan RestTemplate y el conector
+ * de github-api) no soporta HTTP/2, que requeriria el cliente asincrono; el pool con keep-alive ya evita
+ * el establecimiento de una conexion en cada peticion.
+ * Todas las peticiones pasan por el RateLimiter del proveedor, que espera antes de enviar cada peticion
+ * y se actualiza con las cabeceras de rate limit de cada respuesta.
+ */
+public class HttpTransport {
+	private static final int MAX_CONNECTIONS = 20; // total y por ruta (un proveedor tiene normalmente una ruta)
+	private static final long IDLE_EVICTION_SECONDS = 30;
+	// Secondary rate limits de github: como maximo 80 peticiones de escritura por minuto
+	private static final int WRITE_BURST = 10;
+	private static final double WRITES_PER_SECOND = 1;
+	private static final Map<String, HttpTransport> transports = new ConcurrentHashMap<>();
+	private static final Map<String, RateLimiter> rateLimiters = new ConcurrentHashMap<>();
+
+	private PoolingHttpClientConnectionManager pool;
+	private CloseableHttpClient client;
+	private RestTemplate restTemplate;
+	private RateLimiter rateLimiter;
+
+	private HttpTransport(String key) {
+		rateLimiter = getRateLimiterByKey(key);
+		pool = PoolingHttpClientConnectionManagerBuilder.create()
+				.setMaxConnTotal(MAX_CONNECTIONS).setMaxConnPerRoute(MAX_CONNECTIONS).build();
+		// by default, the client keeps alive the connections as indicated by the server and decompresses gzip
+		client = HttpClients.custom().setConnectionManager(pool)
+				.evictIdleConnections(TimeValue.ofSeconds(IDLE_EVICTION_SECONDS))
+				.addRequestInterceptorFirst((request, entity, context) -> rateLimiter.acquire(isWrite(request)))
+				.addResponseInterceptorLast((response, entity, context) -> rateLimiter.update(response.getCode(),
+						name -> getHeader(response, name)))
+				.build();
+		restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(client));
+	}
+
+	/**
+	 * Obtiene el transporte compartido para el proveedor de la url indicada, creandolo si no existe
+	 */
+	public static HttpTransport forUrl(String url) {
+		return transports.computeIfAbsent(getKey(url), HttpTransport::new);
+	}
+
+	/**
+	 * Obtiene el limitador de peticiones del proveedor de la url indicada, compartido con su transporte,
+	 * para los clientes que no envian las peticiones con este transporte (deben llamar a acquire antes de cada peticion)
+	 */
+	public static RateLimiter getRateLimiter(String url) {
+		return getRateLimiterByKey(getKey(url));
+	}
+
+	private static RateLimiter getRateLimiterByKey(String key) {
+		return rateLimiters.computeIfAbsent(key, limiterKey -> new RateLimiter(WRITE_BURST, WRITES_PER_SECOND));
+	}
+
+	private static String getKey(String url) {
+		URI uri = URI.create(url);
+		return uri.getScheme() + "://" + uri.getHost() + (uri.getPort() == -1 ? "" : ":" + uri.getPort());
+	}
+
+	/**
+	 * Indica si una peticion modifica datos (se planifica como escritura en el RateLimiter).
+	 * Las peticiones graphql son siempre POST, solo se consideran escritura las mutaciones
+	 */
+	public static boolean isWrite(HttpRequest request) {
+		if ("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod()))
+			return false;
+		if (request.getPath() != null && request.getPath().endsWith("/graphql")
+				&& request instanceof ClassicHttpRequest classicRequest)
+			return !isGraphqlQuery(classicRequest.getEntity());
+		return true;
+	}
+
+	// El body json de graphql es {"query": "..."}, las mutaciones comienzan por mutation, el resto son queries
+	// (si no se puede leer el body sin consumirlo se considera escritura)
+	private static boolean isGraphqlQuery(HttpEntity entity) {
+		if (entity == null || !entity.isRepeatable())
+			return false;
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			entity.writeTo(body);
+			String query = new ObjectMapper().readTree(body.toByteArray()).path("query").asText("");
+			return !query.stripLeading().startsWith("mutation");
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static String getHeader(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+
+	public CloseableHttpClient getClient() {
+		return client;
+	}
+
+	public RestTemplate getRestTemplate() {
+		return restTemplate;
+	}
+
+	/**
+	 * Estadisticas del pool de conexiones (conexiones en uso, disponibles, peticiones pendientes y maximo)
+	 */
+	public PoolStats getPoolStats() {
+		return pool.getTotalStats();
+	}
+
+	/**
+	 * Estadisticas de los pools de todos los transportes creados, una linea por proveedor
+	 */
+	public static String getAllPoolStats() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, HttpTransport> transport : new TreeMap<>(transports).entrySet())
+			sb.append("\n").append(transport.getKey()).append(": ").append(transport.getValue().getPoolStats());
+		return sb.toString();
+	}
+
+}
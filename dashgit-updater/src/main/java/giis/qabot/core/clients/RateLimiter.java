@@ -0,0 +1,120 @@
+package giis.qabot.core.clients;
+
+import java.util.function.UnaryOperator;
+
+import giis.qabot.core.models.Util;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Limitador de la frecuencia de las peticiones a un proveedor, compartido por todos los clientes
+ * del proveedor: los que usan su transporte http (github: rest, graphql y github-api) y gitlab4j,
+ * que usa su propio cliente http, por lo que solo planifica las escrituras y se actualiza con el codigo de estado.
+ * Las peticiones que modifican datos se planifican con un token bucket
+ * (para no exceder los secondary rate limits de github), y todas las peticiones esperan segun
+ * los limites reales que indica el proveedor en las cabeceras de las respuestas:
+ * <ul>
+ * <li>Retry-After: suspende las peticiones durante los segundos indicados.</li>
+ * <li>X-RateLimit-Remaining/Reset (github) o RateLimit-Remaining/Reset (gitlab): si quedan pocas peticiones
+ * las reparte hasta el momento del reset, y si no queda ninguna suspende las peticiones hasta entonces.</li>
+ * </ul>
+ */
+@Slf4j
+public class RateLimiter {
+	private static final int LOW_REMAINING = 100; // por debajo, reparte las peticiones restantes hasta el reset
+	private static final long DEFAULT_RETRY_MILLIS = 60000; // rate limit excedido sin indicar cuando reintentar
+
+	private double capacity; // maximo de peticiones de escritura seguidas
+	private double writesPerSecond;
+	private double tokens;
+	private long lastRefill;
+	private long pausedUntil; // ninguna peticion hasta este instante (millis)
+	private long spreadUntil; // hasta este instante (reset), las peticiones se separan spreadInterval millis
+	private long spreadInterval;
+	private long lastRequest;
+
+	public RateLimiter(double capacity, double writesPerSecond) {
+		this.capacity = capacity;
+		this.writesPerSecond = writesPerSecond;
+		this.tokens = capacity;
+		this.lastRefill = now();
+	}
+
+	/**
+	 * Espera hasta que los limites permitan enviar una peticion (de escritura si write)
+	 */
+	public void acquire(boolean write) {
+		long wait;
+		while ((wait = reserve(write)) > 0) {
+			log.trace("Rate limit wait {} ms", wait);
+			Util.delay(wait);
+		}
+	}
+
+	// Reserva el envio de una peticion si es posible (devuelve 0), si no, devuelve los millis a esperar
+	private synchronized long reserve(boolean write) {
+		long now = now();
+		long wait = pausedUntil - now;
+		if (now < spreadUntil)
+			wait = Math.max(wait, lastRequest + spreadInterval - now);
+		if (write) {
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * writesPerSecond / 1000);
+			lastRefill = now;
+			if (tokens < 1)
+				wait = Math.max(wait, (long) Math.ceil((1 - tokens) * 1000 / writesPerSecond));
+		}
+		if (wait > 0)
+			return wait;
+		if (write)
+			tokens--;
+		lastRequest = now;
+		return 0;
+	}
+
+	/**
+	 * Actualiza los limites a partir del codigo de estado y las cabeceras de una respuesta
+	 * (la funcion header obtiene el valor de una cabecera o null si no existe)
+	 */
+	public synchronized void update(int status, UnaryOperator<String> header) {
+		long now = now();
+		Long retryAfter = parseLong(header.apply("Retry-After"));
+		Long remaining = parseLong(firstHeader(header, "X-RateLimit-Remaining", "RateLimit-Remaining"));
+		Long reset = parseLong(firstHeader(header, "X-RateLimit-Reset", "RateLimit-Reset"));
+		long resetMillis = reset == null ? 0 : reset * 1000;
+		if (retryAfter != null) {
+			pause(now + retryAfter * 1000);
+		} else if (remaining != null && remaining == 0 && resetMillis > now) {
+			pause(resetMillis);
+		} else if (status == 429) {
+			pause(now + DEFAULT_RETRY_MILLIS); // limite excedido sin indicar cuando reintentar
+		}
+		if (remaining != null && remaining > 0 && remaining < LOW_REMAINING && resetMillis > now) {
+			spreadUntil = resetMillis;
+			spreadInterval = (resetMillis - now) / remaining;
+		}
+	}
+
+	private void pause(long until) {
+		if (until > pausedUntil) {
+			log.warn("Rate limit exceeded, pause requests for {} ms", until - now());
+			pausedUntil = until;
+		}
+	}
+
+	private String firstHeader(UnaryOperator<String> header, String name, String alternative) {
+		String value = header.apply(name);
+		return value != null ? value : header.apply(alternative);
+	}
+
+	private Long parseLong(String value) {
+		try {
+			return value == null ? null : Long.valueOf(value.trim());
+		} catch (NumberFormatException e) {
+			return null; // p.e. Retry-After como fecha, no usado por github ni gitlab
+		}
+	}
+
+	private long now() {
+		return System.currentTimeMillis();
+	}
+
+}
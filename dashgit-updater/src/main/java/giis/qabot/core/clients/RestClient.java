@@ -3,12 +3,10 @@ package giis.qabot.core.clients;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.ClientHttpRequestFactory;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
-import org.springframework.web.client.RestTemplate;
 
 /**
- * Envio de peticiones rest generales
+ * Envio de peticiones rest generales, usando el transporte http compartido
+ * por todas las peticiones al mismo proveedor
  */
 public class RestClient {
 	/**
@@ -17,12 +15,10 @@ public class RestClient {
 	 * resultados de getStatusCode y getBody)
 	 */
 	public ResponseEntity<String> post(String url, String body, String token) {
-		ClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory();
-		RestTemplate restTemplate = new RestTemplate(requestFactory);
 		HttpHeaders headers = new HttpHeaders();
 		if (token != null && token.length() > 0)
 			headers.add("Authorization", "Bearer " + token);
 		headers.add("content-type", "application/json"); // maintain graphql
-		return restTemplate.postForEntity(url, new HttpEntity<>(body, headers), String.class);
+		return HttpTransport.forUrl(url).getRestTemplate().postForEntity(url, new HttpEntity<>(body, headers), String.class);
 	}
 }
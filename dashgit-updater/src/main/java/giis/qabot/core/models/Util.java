@@ -1,5 +1,10 @@
 package giis.qabot.core.models;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 
 import org.springframework.web.util.UriUtils;
@@ -36,6 +41,27 @@ public class Util { // NOSONAR static utility class
 			Thread.sleep(millis);
 	}
 
+	/**
+	 * Espera el resultado de una tarea ejecutada en otro thread (task describe la tarea en los mensajes).
+	 * Relanza las IOException y excepciones no chequeadas de la tarea, el resto se encapsulan en IOException
+	 */
+	public static <T> T getResult(Future<T> future, String task) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while " + task);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioException)
+				throw ioException;
+			if (e.getCause() instanceof RuntimeException runtimeException)
+				throw runtimeException;
+			if (e.getCause() instanceof Error error)
+				throw error;
+			throw new IOException("Failed while " + task, e.getCause());
+		}
+	}
+
 	public static String decodePath(String value) {
 		return UriUtils.decode(value, "UTF-8");
 	}
@@ -65,7 +65,7 @@ public class Base {
 		// Requires previous configuration of the CI in each repo using one of the files at src/test/resources/git-project
 		git.cloneRepository(project.name());
 		createWorkspaceFile(git, ".", "main-script.sh");
-		git.commit("Reset default test branch content for " + branchPattern).push(true);
+		git.commit("Reset default test branch content for " + branchPattern, "main-script.sh").push(true);
 
 		// A branch for each update, changes will be done in adjacent lines to cause
 		// conflicts.
@@ -87,7 +87,7 @@ public class Base {
 			writeWorkspaceFile(git, "main-script.sh", script);
 
 			// Note that pushes are against main branch (the checked-out)
-			git.commit("Set change at branch " + branch.name()).push(true);
+			git.commit("Set change at branch " + branch.name(), "main-script.sh").push(true);
 			PullRequest pr = gitClient.createPullRequest(project.name(), branch.name(), git.getDefaultBranch(),
 					"Test pull Request for " + branch.name(),
 					"Description of test pull request for branch " + branch.name(), "", List.of(labels[i]), true, false,
@@ -0,0 +1,197 @@
+package giis.dashgit.updater.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import giis.qabot.ci.clients.IGitClient;
+import giis.qabot.ci.models.CommitDiff;
+import giis.qabot.ci.models.PullRequest;
+import lombok.SneakyThrows;
+
+/**
+ * Implements the methods of IGitClient that access the repository content
+ * on a local repository (instead of the api of a provider), to test the merges done through the api.
+ * Other methods are not supported.
+ */
+public class LocalGitClient implements IGitClient {
+	private File dir;
+
+	public LocalGitClient(File dir) {
+		this.dir = dir;
+	}
+
+	@Override
+	@SneakyThrows(IOException.class)
+	public String getBranchSha(String projectId, String branchName) {
+		try (Git git = Git.open(dir)) {
+			return git.getRepository().resolve(Constants.R_HEADS + branchName).getName();
+		}
+	}
+
+	@Override
+	@SneakyThrows(IOException.class)
+	public CommitDiff compareCommits(String projectId, String base, String head) {
+		try (Git git = Git.open(dir); RevWalk walk = new RevWalk(git.getRepository())) {
+			RevCommit headCommit = walk.parseCommit(ObjectId.fromString(head));
+			walk.setRevFilter(RevFilter.MERGE_BASE);
+			walk.markStart(walk.parseCommit(ObjectId.fromString(base)));
+			walk.markStart(headCommit);
+			RevCommit mergeBase = walk.next();
+			CommitDiff diff = new CommitDiff().mergeBase(mergeBase.getName());
+			try (TreeWalk treeWalk = new TreeWalk(git.getRepository())) {
+				treeWalk.addTree(mergeBase.getTree());
+				treeWalk.addTree(headCommit.getTree());
+				treeWalk.setRecursive(true);
+				treeWalk.setFilter(TreeFilter.ANY_DIFF);
+				while (treeWalk.next())
+					diff.files().add(treeWalk.getPathString());
+			}
+			return diff;
+		}
+	}
+
+	@Override
+	@SneakyThrows(IOException.class)
+	public byte[] getFileContent(String projectId, String path, String sha) {
+		try (Git git = Git.open(dir); RevWalk walk = new RevWalk(git.getRepository());
+				TreeWalk tree = TreeWalk.forPath(git.getRepository(), path, walk.parseCommit(ObjectId.fromString(sha)).getTree())) {
+			return tree == null ? null : git.getRepository().open(tree.getObjectId(0)).getBytes();
+		}
+	}
+
+	@Override
+	@SneakyThrows(IOException.class)
+	public String createBranchCommit(String projectId, String branchName, String parentSha, String message,
+			Map<String, String> files, Set<String> newFiles) {
+		try (Git git = Git.open(dir); RevWalk walk = new RevWalk(git.getRepository());
+				ObjectInserter inserter = git.getRepository().newObjectInserter()) {
+			Repository repo = git.getRepository();
+			RevCommit parent = walk.parseCommit(ObjectId.fromString(parentSha));
+			DirCache index = DirCache.newInCore();
+			DirCacheBuilder builder = index.builder();
+			builder.addTree(new byte[0], DirCacheEntry.STAGE_0, walk.getObjectReader(), parent.getTree());
+			builder.finish();
+			DirCacheEditor editor = index.editor();
+			for (Map.Entry<String, String> file : files.entrySet()) {
+				if (file.getValue() == null) {
+					editor.add(new DirCacheEditor.DeletePath(file.getKey()));
+				} else {
+					ObjectId blob = inserter.insert(Constants.OBJ_BLOB, file.getValue().getBytes(StandardCharsets.UTF_8));
+					editor.add(new DirCacheEditor.PathEdit(file.getKey()) {
+						@Override
+						public void apply(DirCacheEntry entry) {
+							// as the gitlab api, fails if a new file exists or other file does not exist
+							if ((entry.getRawMode() == 0) != newFiles.contains(entry.getPathString()))
+								throw new IllegalStateException("Wrong new file indication: " + entry.getPathString());
+							if (entry.getRawMode() == 0) // new file
+								entry.setFileMode(FileMode.REGULAR_FILE);
+							entry.setObjectId(blob);
+						}
+					});
+				}
+			}
+			editor.finish();
+			CommitBuilder commit = new CommitBuilder();
+			PersonIdent ident = new PersonIdent("test", "test@example.com");
+			commit.setAuthor(ident);
+			commit.setCommitter(ident);
+			commit.setMessage(message);
+			commit.setTreeId(index.writeTree(inserter));
+			commit.setParentId(parent);
+			ObjectId commitId = inserter.insert(commit);
+			inserter.flush();
+			RefUpdate update = repo.updateRef(Constants.R_HEADS + branchName);
+			update.setNewObjectId(commitId);
+			update.update();
+			return commitId.getName();
+		}
+	}
+
+	// Methods that are not needed to merge using the api
+
+	@Override
+	public IGitClient pollCheckLimit(int iterations) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public IGitClient pollCheckDelay(int milliseconds) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void addPullRequestComments(List<PullRequest> pullRequests, List<String> comments) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public String getUsername() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean isAdmin() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void deleteBranch(String projectId, String branchName) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public List<PullRequest> getPullRequests(boolean onlyAssignedToMe) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public PullRequest getPullRequest(String repoId, long prId) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public List<PullRequest> getPullRequests(String repoId, long[] prIds) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void addPullRequestCommment(PullRequest pullRequest, String comment) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public PullRequest createPullRequest(String projectId, String sourceBranch, String targetBranch, String title, // NOSONAR
+			String description, String assignee, List<String> labels, boolean deleteBranchOnMerge,
+			boolean squashOnMerge, boolean setAutoMerge) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public PullRequest rebaseAndMerge(PullRequest pr, boolean squash) {
+		throw new UnsupportedOperationException();
+	}
+
+}
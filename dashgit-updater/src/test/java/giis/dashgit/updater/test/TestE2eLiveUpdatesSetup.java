@@ -68,14 +68,14 @@ public class TestE2eLiveUpdatesSetup extends Base {
 		return """
 				{
 				  'updates': {
-				    'dryRun' : false, 'managerRepoName': 'user/dashgit-manager',
+				    'dryRun' : false, 'managerRepoName': 'user/dashgit-manager', 'concurrency': 4,
 				    'providers': {
 				      '0-github': {
 				        'urlValue': 'https://github.com', 'userValue': 'user1', 'tokenSecret': 'GITHUB_TOKEN',
 				        'repositories': { 'user1/dashgit': [ '68', '67', '66' ], 'user1/dashgit-integration': [ '1' ] }
 				      },
 				      '1-github': {
-				        'urlValue': 'https://github1.com', 'userValue': 'user2', 'tokenSecret': 'GITHUB_TOKEN',
+				        'urlValue': 'https://github1.com', 'userValue': 'user2', 'tokenSecret': 'GITHUB_TOKEN', 'concurrency': 1,
 				        'repositories': { 'user2/dashgit': [ '11' ] }
 				      }
 				    }
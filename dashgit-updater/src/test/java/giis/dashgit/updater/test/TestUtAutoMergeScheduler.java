@@ -0,0 +1,100 @@
+package giis.dashgit.updater.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import giis.qabot.ci.clients.AutoMergeScheduler;
+import lombok.SneakyThrows;
+
+/**
+ * Asynchronous auto-merge: the attempt is made as soon as the readiness check succeeds,
+ * polling with a backoff that starts in tens of milliseconds instead of a fixed wait
+ */
+public class TestUtAutoMergeScheduler {
+
+	private AutoMergeScheduler scheduler = new AutoMergeScheduler(20, 100);
+
+	@Test
+	public void testAttemptWhenReady() throws Exception {
+		AtomicInteger checks = new AtomicInteger();
+		AtomicInteger attempts = new AtomicInteger();
+		long start = System.currentTimeMillis();
+		CompletableFuture<Boolean> result = scheduler.schedule("pr", () -> checks.incrementAndGet() >= 3, () -> {
+			attempts.incrementAndGet();
+			return AutoMergeScheduler.SUCCESS;
+		}, 5000);
+		assertTrue(result.get());
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("elapsed: " + elapsed, elapsed < 1000); // two waits of at most 20 and 40 ms
+		assertEquals(3, checks.get());
+		assertEquals(1, attempts.get());
+		assertEquals(0, scheduler.getPendingCount());
+	}
+
+	@Test
+	public void testRetryAndAbort() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		// exceptions are retried as the RETRY status
+		CompletableFuture<Boolean> result = scheduler.schedule("pr", () -> true, () -> {
+			if (attempts.incrementAndGet() == 1)
+				throw new RuntimeException("405 method not allowed");
+			return attempts.get() < 3 ? AutoMergeScheduler.RETRY : AutoMergeScheduler.SUCCESS;
+		}, 5000);
+		assertTrue(result.get());
+		assertEquals(3, attempts.get());
+
+		attempts.set(0);
+		result = scheduler.schedule("pr", () -> true, () -> {
+			attempts.incrementAndGet();
+			return AutoMergeScheduler.ABORT;
+		}, 5000);
+		assertFalse(result.get());
+		assertEquals(1, attempts.get());
+	}
+
+	// Check that fails as the api methods that sneaky throw checked exceptions
+	@SneakyThrows
+	private boolean failCheck(AtomicInteger checks) {
+		if (checks.incrementAndGet() == 1)
+			throw new IOException("Connection reset");
+		return true;
+	}
+
+	@Test
+	public void testCheckedExceptionIsRetried() throws Exception {
+		AtomicInteger checks = new AtomicInteger();
+		CompletableFuture<Boolean> result = scheduler.schedule("pr", () -> failCheck(checks),
+				() -> AutoMergeScheduler.SUCCESS, 5000);
+		assertTrue(result.get(2, TimeUnit.SECONDS));
+		assertEquals(2, checks.get());
+	}
+
+	@Test
+	public void testTimeoutWhenNeverReady() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		CompletableFuture<Boolean> never = scheduler.schedule("never", () -> false, () -> {
+			attempts.incrementAndGet();
+			return AutoMergeScheduler.SUCCESS;
+		}, 300);
+		CompletableFuture<Boolean> ready = scheduler.schedule("ready", () -> true, () -> AutoMergeScheduler.SUCCESS, 300);
+		// the await time covers the timeout of the last auto-merge (plus the max delay)
+		long awaitTime = scheduler.getAwaitTime();
+		assertTrue("await time: " + awaitTime, awaitTime > 300 && awaitTime <= 400);
+		List<CompletableFuture<Boolean>> scheduled = scheduler.takeScheduled();
+		assertEquals(List.of(never, ready), scheduled);
+		assertFalse(never.get(awaitTime, TimeUnit.MILLISECONDS));
+		assertTrue(ready.get(awaitTime, TimeUnit.MILLISECONDS));
+		assertEquals(0, attempts.get());
+		assertEquals(0, scheduler.takeScheduled().size());
+	}
+
+}
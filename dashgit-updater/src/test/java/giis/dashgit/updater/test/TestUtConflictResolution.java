@@ -1,15 +1,30 @@
 package giis.dashgit.updater.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.diff.Sequence;
+import org.eclipse.jgit.merge.MergeAlgorithm;
+import org.eclipse.jgit.merge.MergeResult;
 import org.junit.Test;
 
 import giis.dashgit.updater.ConflictResolver;
+import giis.qabot.ci.clients.HunkResolver;
 import giis.qabot.ci.clients.IConflictResolver;
+import giis.qabot.ci.clients.ResolutionCache;
 import giis.visualassert.Framework;
 import giis.visualassert.VisualAssert;
 import giis.visualassert.portable.FileUtil;
@@ -46,7 +61,7 @@ public class TestUtConflictResolution extends Base {
 	@Test
 	public void testConflictResolvedSingle() {
 		FileUtil.fileWrite("target/conflict.txt", pristineSingle);
-		IConflictResolver resolver = new ConflictResolver();
+		ConflictResolver resolver = new ConflictResolver();
 		int unresolved = resolver.resolve("target/conflict.txt");
 		String expected = content(lines("begin", "<x>2.2.2</x>", "<y>5.5.5</y>", "end"));
 		va.assertEquals(expected, FileUtil.fileRead("target/conflict.txt"));
@@ -56,7 +71,7 @@ public class TestUtConflictResolution extends Base {
 	@Test
 	public void testConflictResolvedMultiple() {
 		FileUtil.fileWrite("target/conflict.txt", pristineMultiple);
-		IConflictResolver resolver = new ConflictResolver();
+		ConflictResolver resolver = new ConflictResolver();
 		int unresolved = resolver.resolve("target/conflict.txt");
 		String expected = content(lines(
 				"begin1", "<x>2.2.2</x>", "<z>3.3.3</z>", "<y>5.5.5</y>", "end1", 
@@ -69,7 +84,7 @@ public class TestUtConflictResolution extends Base {
 	public void testConflictUnesolvedSingle() {
 		String pristine = pristineSingle.replace("<x>2.2.2</x>", "<XX>2.2.2</XX>");
 		FileUtil.fileWrite("target/conflict.txt", pristine);
-		IConflictResolver resolver = new ConflictResolver();
+		ConflictResolver resolver = new ConflictResolver();
 		int unresolved = resolver.resolve("target/conflict.txt");
 		va.assertEquals(pristine, FileUtil.fileRead("target/conflict.txt"));
 		assertEquals(1, unresolved);
@@ -81,7 +96,7 @@ public class TestUtConflictResolution extends Base {
 				.replace("<x>2.2.2</x>", "<XX>2.2.2</XX>")
 				.replace("<w>4.5.6</w>", "<WW>4.5.6</WW>");
 		FileUtil.fileWrite("target/conflict.txt", pristine);
-		IConflictResolver resolver = new ConflictResolver();
+		ConflictResolver resolver = new ConflictResolver();
 		int unresolved = resolver.resolve("target/conflict.txt");
 		va.assertEquals(pristine, FileUtil.fileRead("target/conflict.txt"));
 		assertEquals(2, unresolved);
@@ -91,7 +106,7 @@ public class TestUtConflictResolution extends Base {
 	public void testConflictUnesolvedPartial() {
 		String pristine = pristineMultiple.replace("<w>4.5.6</w>", "<WW>4.5.6</WW>");
 		FileUtil.fileWrite("target/conflict.txt", pristine);
-		IConflictResolver resolver = new ConflictResolver();
+		ConflictResolver resolver = new ConflictResolver();
 		int unresolved = resolver.resolve("target/conflict.txt");
 		// In this case, a conflict was resolved, but not the other, can't compare against the pristine
 		String expected=content(
@@ -105,6 +120,134 @@ public class TestUtConflictResolution extends Base {
 		assertEquals(1, unresolved);
 	}
 	
+	@Test
+	public void testConflictResolvedKeepsLineTerminators() {
+		// CRLF and trailing new line, also at the end of the conflict
+		String expected = content(lines("begin", "<x>2.2.2</x>", "<y>5.5.5</y>", "end")).replace("\n", "\r\n") + "\r\n";
+		FileUtil.fileWrite("target/conflict.txt", pristineSingle.replace("\n", "\r\n") + "\r\n");
+		assertEquals(0, new ConflictResolver().resolve("target/conflict.txt"));
+		assertEquals(expected, FileUtil.fileRead("target/conflict.txt"));
+
+		String pristine = content(lines("begin"), conflict(new String[] { "<x>2.2.2</x>" }, new String[] { "<x>1.1.1</x>" }));
+		FileUtil.fileWrite("target/conflict.txt", pristine + "\n");
+		assertEquals(0, new ConflictResolver().resolve("target/conflict.txt"));
+		assertEquals("begin\n<x>2.2.2</x>\n", FileUtil.fileRead("target/conflict.txt"));
+		FileUtil.fileWrite("target/conflict.txt", pristine);
+		assertEquals(0, new ConflictResolver().resolve("target/conflict.txt"));
+		assertEquals("begin\n<x>2.2.2</x>", FileUtil.fileRead("target/conflict.txt"));
+	}
+
+	@Test
+	public void testConflictResolvedReplacesFile() {
+		// the resolved content is written in a temporary file that replaces the original, keeping its permissions
+		File file = new File("target/conflict.txt");
+		FileUtil.fileWrite(file.getPath(), pristineSingle);
+		assertTrue(file.setExecutable(true));
+		assertEquals(0, new ConflictResolver().resolve(file.getPath()));
+		assertTrue(file.canExecute());
+		assertEquals("[conflict.txt]", Arrays.toString(new File("target").list((dir, name) -> name.contains("conflict.txt"))));
+	}
+
+	@Test
+	public void testConflictUnresolvedFileNotWritten() {
+		File file = new File("target/conflict.txt");
+		FileUtil.fileWrite(file.getPath(), pristineSingle.replace("<x>2.2.2</x>", "<XX>2.2.2</XX>"));
+		assertTrue(file.setLastModified(1000000000000L));
+		assertEquals(1, new ConflictResolver().resolve(file.getPath()));
+		assertEquals(1000000000000L, file.lastModified());
+		assertEquals("[conflict.txt]", Arrays.toString(new File("target").list((dir, name) -> name.contains("conflict.txt"))));
+	}
+
+	@Test
+	public void testConflictResolvedHunks() throws IOException {
+		// conflicting regions of a three-way merge are resolved without conflict markers,
+		// keeping the line terminators and the missing new line at the end
+		String base = "begin\r\n<x>1.1.1</x>\r\nmiddle\r\n<y>1.1.1</y>";
+		String ours = "begin\r\n<x>2.2.2</x>\r\nmiddle\r\n<y>1.1.2</y>";
+		String theirs = "begin\r\n<x>1.1.2</x>\r\nmiddle\r\n<y>3.3.3</y>";
+		assertEquals("begin\r\n<x>2.2.2</x>\r\nmiddle\r\n<y>3.3.3</y>", resolveHunks(base, ours, theirs));
+		assertEquals("begin\n<x>2.2.2</x>\nmiddle\n", resolveHunks("begin\n<x>1.1.1</x>\nmiddle\n",
+				"begin\n<x>2.2.2</x>\nmiddle\n", "begin\n<x>1.1.2</x>\nmiddle\n"));
+		// unresolved if any hunk can't be resolved
+		assertEquals(null, resolveHunks(base, ours, theirs.replace("<y>3.3.3</y>", "<yy>3.3.3</yy>")));
+	}
+
+	@Test
+	public void testConflictResolvedParallel() throws IOException {
+		// many files resolved in parallel by the same resolver, same results and order than sequentially
+		Map<String, MergeResult<? extends Sequence>> results = new LinkedHashMap<>();
+		Map<String, String> expected = new LinkedHashMap<>();
+		for (int i = 0; i < 20; i++) {
+			String path = "module" + (19 - i) + "/pom.xml"; // not sorted
+			String base = "begin\n<x>1.1.1</x>\nmiddle\n<y>" + i + ".1.1</y>\nend\n";
+			String theirs = base.replace("<x>1.1.1", "<x>1.1.2").replace("<y>" + i + ".1.1", "<y>" + i + ".1.3");
+			String ours = base.replace("<x>1.1.1", "<x>2.2.2").replace("<y>" + i + ".1.1", "<y>" + i + ".1.2");
+			if (i % 5 == 0) // some files can't be resolved
+				ours = ours.replace("<x>", "<xx>");
+			results.put(path, new MergeAlgorithm().merge(RawTextComparator.DEFAULT, rawText(base),
+					rawText(ours), rawText(theirs)));
+			expected.put(path, i % 5 == 0 ? null : "begin\n<x>2.2.2</x>\nmiddle\n<y>" + i + ".1.3</y>\nend\n");
+		}
+		Map<String, byte[]> resolved = new HunkResolver(new ConflictResolver()).resolveAll(results);
+		Map<String, String> actual = new LinkedHashMap<>();
+		for (Map.Entry<String, byte[]> file : resolved.entrySet())
+			actual.put(file.getKey(), file.getValue() == null ? null : new String(file.getValue(), StandardCharsets.UTF_8));
+		assertEquals(expected.toString(), actual.toString());
+	}
+
+	@Test
+	public void testConflictResolutionCache() {
+		List<String> resolverCalls = new ArrayList<>();
+		IConflictResolver counting = new ConflictResolver() {
+			@Override
+			public List<String> resolveHunk(String fileName, List<String> ours, List<String> theirs) {
+				resolverCalls.add(fileName);
+				return super.resolveHunk(fileName, ours, theirs);
+			}
+		};
+		String cacheFile = "target/resolution-cache/cache.txt";
+		new File(cacheFile).delete();
+		ResolutionCache cache = new ResolutionCache(cacheFile, 2);
+		IConflictResolver resolver = cache.wrap(counting);
+		List<String> ours = Arrays.asList("<x>2.2.2</x>", "<y>4.4.4</y>");
+		List<String> theirs = Arrays.asList("<x>1.1.1</x>", "<y>5.5.5</y>");
+		List<String> unresolvable = Arrays.asList("<xx>1.1.1</xx>", "<y>5.5.5</y>");
+		String expected = "[<x>2.2.2</x>, <y>5.5.5</y>]";
+
+		// first time resolved by the resolver, next from the cache (also if line terminators differ)
+		assertEquals(expected, String.valueOf(resolver.resolveHunk("f1", ours, theirs)));
+		assertEquals(expected, String.valueOf(resolver.resolveHunk("f2", ours, theirs)));
+		assertEquals("[<x>2.2.2</x>\r, <y>5.5.5</y>\r]", String.valueOf(resolver.resolveHunk("f3",
+				Arrays.asList("<x>2.2.2</x>\r", "<y>4.4.4</y>\r"), Arrays.asList("<x>1.1.1</x>\r", "<y>5.5.5</y>\r"))));
+		// unresolved are cached too
+		assertEquals(null, resolver.resolveHunk("f4", ours, unresolvable));
+		assertEquals(null, resolver.resolveHunk("f5", ours, unresolvable));
+		assertEquals("[f1, f4]", resolverCalls.toString());
+		assertEquals("entries: 2, hits: 3, misses: 2, evictions: 0", cache.toString());
+
+		// persisted and loaded, keeps the max size evicting the least recently used
+		cache.save();
+		cache = new ResolutionCache(cacheFile, 2);
+		resolver = cache.wrap(counting);
+		assertEquals(expected, String.valueOf(resolver.resolveHunk("f6", ours, theirs)));
+		assertEquals(expected, String.valueOf(resolver.resolveHunk("f7", theirs, ours)));
+		assertEquals(null, resolver.resolveHunk("f8", ours, unresolvable)); // was evicted
+		assertEquals("[f1, f4, f7, f8]", resolverCalls.toString());
+		assertEquals("entries: 2, hits: 1, misses: 2, evictions: 2", cache.toString());
+	}
+
+	private String resolveHunks(String base, String ours, String theirs) throws IOException {
+		MergeResult<RawText> result = new MergeAlgorithm().merge(RawTextComparator.DEFAULT, rawText(base),
+				rawText(ours), rawText(theirs));
+		assertTrue(result.containsConflicts());
+		byte[] content = new HunkResolver(new ConflictResolver()).resolve("conflict.txt", result);
+		return content == null ? null : new String(content, StandardCharsets.UTF_8);
+	}
+
+	private RawText rawText(String content) {
+		return new RawText(content.getBytes(StandardCharsets.UTF_8));
+	}
+
 	// Utilities to compose inputs and outputs
 	
 	@SafeVarargs
@@ -155,6 +298,56 @@ public class TestUtConflictResolution extends Base {
 		// no version located (none, 2 components)
 		assertLine("", "<version>1.3</version>", "<version>1.2</version>");
 		assertLine("", "<version>a.b.c</version>", "<version>a.b.d</version>");
+		// differences out of the version, version repeated only at one side
+		assertLine("", "<x>1.3.5</x><y>1.3.5</y>", "<x>1.3.6</x><y>1.3.5</y>");
+		assertLine("", "<version>1.3.5</version>", "<version>1.3.5</version2>");
+	}
+
+	@Test
+	public void testLineCompareScanner() {
+		// version located after other numbers that are not a version, or inside text
+		assertLine("v2.1 ver1.3.5-b2", "v2.1 ver1.3.4-b2", "v2.1 ver1.3.5-b2");
+		assertLine("a 1.2 x.1.3.5.", "a 1.2 x.1.3.5.", "a 1.2 x.1.3.4.");
+		assertLine("1..2.3.4", "1..2.3.3", "1..2.3.4");
+		// version repeated in the line at both sides
+		assertLine("<x>1.3.5</x><y>1.3.5</y>", "<x>1.3.4</x><y>1.3.4</y>", "<x>1.3.5</x><y>1.3.5</y>");
+		// numbers that overflow an int or long, leading zeros
+		assertLine("<v>1.2.123456789012</v>", "<v>1.2.123456789012</v>", "<v>1.2.99999999999</v>");
+		assertLine("<v>1.2.99999999999999999999</v>", "<v>1.2.99999999999999999998</v>", "<v>1.2.99999999999999999999</v>");
+		assertLine("<v>1.02.3</v>", "<v>1.02.3</v>", "<v>1.1.3</v>");
+		// empty or without digits
+		assertLine("", "", "");
+		assertLine("", "1.2.3", "");
+	}
+
+	// Same results than the previous implementation based on regex and string replacements
+	@Test
+	public void testLineCompareSameAsRegex() {
+		String[] lines = { "<version>1.3.4</version>", "<version>1.3.5</version>", "<version>1.3.4.5</version>",
+				"<version>1.4.4</version>", "<version>0.3.4</version>", "'dep': '1.3.4'", "'dep2': '1.3.4'",
+				"<version>1.3</version>", "<version>a.b.c</version>", "x 11.2.3 1.2.3", "x 11.2.4 1.2.4",
+				"<version>10.3.4-rc1</version>", "<version>9.3.4-rc1</version>", "1.2.3", "2.2.3", "",
+				"<x>1.3.4</x><y>1.3.4</y>", "<x>1.3.5</x><y>1.3.5</y>", "<x>1.3.5</x><y>1.3.4</y>" };
+		for (String left : lines)
+			for (String right : lines)
+				assertEquals("left: " + left + ", right: " + right, regexHandleConflictingLine(left, right),
+						ConflictResolver.handleConflictingLine(0, left, right));
+	}
+
+	private String regexHandleConflictingLine(String left, String right) {
+		Pattern pattern = Pattern.compile("\\d+(\\.\\d+){2,}");
+		Matcher matcher = pattern.matcher(left);
+		String leftVersion = matcher.find() ? matcher.group(0) : "";
+		matcher = pattern.matcher(right);
+		String rightVersion = matcher.find() ? matcher.group(0) : "";
+		if ("".equals(leftVersion) || "".equals(rightVersion)
+				|| leftVersion.split("\\.").length != rightVersion.split("\\.").length)
+			return "";
+		String leftMask = left.replace(leftVersion, "{version}");
+		String rightMask = right.replace(rightVersion, "{version}");
+		if (!leftMask.equals(rightMask))
+			return "";
+		return leftMask.replace("{version}", ConflictResolver.getLatestVersion(leftVersion, rightVersion));
 	}
 	private void assertLine(String expected, String left, String right) {
 		assertEquals(expected.replace("'", "\""),
@@ -173,6 +366,12 @@ public class TestUtConflictResolution extends Base {
 		assertEquals("2.2.3", ConflictResolver.getLatestVersion("2.2.3", "1.2.3"));
 
 		assertEquals("1.2.3", ConflictResolver.getLatestVersion("1.2.3", "1.2.3"));
+
+		// components of different length, overflow of int
+		assertEquals("1.10.3", ConflictResolver.getLatestVersion("1.9.3", "1.10.3"));
+		assertEquals("1.2.20240101120000", ConflictResolver.getLatestVersion("1.2.20240101120000", "1.2.20231231235959"));
+		assertEquals("1.2.3000000000", ConflictResolver.getLatestVersion("1.2.2999999999", "1.2.3000000000"));
+		assertEquals("1.002.3", ConflictResolver.getLatestVersion("1.002.3", "1.1.3"));
 	}
 
 }
@@ -0,0 +1,624 @@
+package giis.dashgit.updater.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.Test;
+
+import giis.dashgit.updater.ConflictResolver;
+import giis.qabot.ci.clients.ApiMerger;
+import giis.qabot.ci.clients.GitLocal;
+import giis.qabot.ci.clients.IGitClient;
+import giis.qabot.ci.clients.MirrorCache;
+import giis.qabot.ci.clients.ResolutionCache;
+
+/**
+ * Merges of dependency updates using a local origin repository (no remote provider is needed):
+ * Each update branch changes the version at a different line of a file, so that
+ * adjacent changes cause conflicts that are resolved (or not) by the conflict resolver.
+ * Merges with and without work tree (or using the api of a local client) must produce the same result.
+ */
+public class TestUtGitLocalMerge extends Base {
+	private static final String ORIGIN_ROOT = "target/test-origin";
+	private static final String MIRROR_ROOT = "target/test-mirrors";
+	private static final String FILE_NAME = "main-script.sh";
+
+	private String repoName;
+	private List<String> shas;
+	// Content of the local repo (if not in-core) after clone, to check the clone options
+	private String localRefs;
+	private String workTreeFiles;
+
+	// Creates the origin repo with a main branch and one branch for each update
+	private void setUpOrigin(boolean unresolvedConflict) throws IOException, GitAPIException {
+		setUpOrigin(unresolvedConflict, 0);
+	}
+	// Optionally, adds commits to the main branch after the update branches (merge bases are deeper in history)
+	private void setUpOrigin(boolean unresolvedConflict, int mainCommits) throws IOException, GitAPIException {
+		repoName = testName.getMethodName() + "-" + new SimpleDateFormat("HHmmssSSS").format(new Date());
+		File dir = Paths.get(ORIGIN_ROOT, repoName).toFile();
+		FileUtils.deleteDirectory(dir);
+		shas = new ArrayList<>();
+		try (Git git = Git.init().setDirectory(dir).setInitialBranch("main").call()) {
+			writeFile(dir, getContent(-1, false));
+			git.add().addFilepattern(".").call();
+			git.commit().setMessage("Initial content").call();
+			for (int i = 0; i < numTestBranches; i++) {
+				git.checkout().setName("main").call();
+				git.checkout().setName("update-" + i).setCreateBranch(true).call();
+				writeFile(dir, getContent(i, i == 1 && unresolvedConflict));
+				git.add().addFilepattern(".").call();
+				shas.add(git.commit().setMessage("Update " + i).call().getName());
+			}
+			git.checkout().setName("main").call();
+			for (int i = 0; i < mainCommits; i++) {
+				FileUtils.writeStringToFile(new File(dir, "other.txt"), "change " + i, StandardCharsets.UTF_8);
+				git.add().addFilepattern(".").call();
+				git.commit().setMessage("Other change " + i).call();
+			}
+		}
+	}
+
+	// Creates the origin repo where each update changes a different file (a new file for the last update)
+	// and adds a commit to the main branch after the update branches
+	private void setUpOriginDisjoint() throws IOException, GitAPIException {
+		repoName = testName.getMethodName() + "-" + new SimpleDateFormat("HHmmssSSS").format(new Date());
+		File dir = Paths.get(ORIGIN_ROOT, repoName).toFile();
+		FileUtils.deleteDirectory(dir);
+		shas = new ArrayList<>();
+		try (Git git = Git.init().setDirectory(dir).setInitialBranch("main").call()) {
+			for (int i = 0; i < numTestBranches - 1; i++)
+				FileUtils.writeStringToFile(new File(dir, "file-" + i + ".txt"), "initial", StandardCharsets.UTF_8);
+			git.add().addFilepattern(".").call();
+			git.commit().setMessage("Initial content").call();
+			for (int i = 0; i < numTestBranches; i++) {
+				git.checkout().setName("main").call();
+				git.checkout().setName("update-" + i).setCreateBranch(true).call();
+				FileUtils.writeStringToFile(new File(dir, "file-" + i + ".txt"), "update " + i, StandardCharsets.UTF_8);
+				git.add().addFilepattern(".").call();
+				shas.add(git.commit().setMessage("Update " + i).call().getName());
+			}
+			git.checkout().setName("main").call();
+			FileUtils.writeStringToFile(new File(dir, "other.txt"), "change", StandardCharsets.UTF_8);
+			git.add().addFilepattern(".").call();
+			git.commit().setMessage("Other change").call();
+		}
+	}
+
+	// Merges all updates as disjoint changes, returns if merged, the number of parents and content of the files
+	private String runDisjointMerges(boolean inCore, String... fileNames) throws IOException {
+		try (GitLocal gitLocal = new GitLocal("target", new File(ORIGIN_ROOT).getAbsolutePath(), "", "", "")) {
+			gitLocal.setInCore(inCore).setCleanOnClose(true).cloneRepository(repoName);
+			String branch = "combined-disjoint-" + (inCore ? "incore" : "worktree");
+			gitLocal.checkout(branch, true);
+			boolean merged = gitLocal.mergeDisjoint(shas, "Combined updates");
+			gitLocal.push(false);
+			StringBuilder sb = new StringBuilder((merged ? "merged" : "not merged") + ", parents: " + getParentCount(branch));
+			for (String fileName : fileNames)
+				sb.append(", ").append(readOriginFile(branch, fileName));
+			if (!inCore) // work tree must match the combined commit
+				sb.append(", worktree: ").append(FileUtils.readFileToString(
+						new File(gitLocal.getWorkTree(), fileNames[0]), StandardCharsets.UTF_8));
+			return sb.toString();
+		}
+	}
+
+	private int getParentCount(String branch) throws IOException {
+		try (Repository repo = Git.open(Paths.get(ORIGIN_ROOT, repoName).toFile()).getRepository();
+				RevWalk walk = new RevWalk(repo)) {
+			return walk.parseCommit(repo.resolve("refs/heads/" + branch)).getParentCount();
+		}
+	}
+
+	// Content of the file where the update i (-1 for none) sets a change of minor version at row i
+	private String getContent(int update, boolean changeTag) {
+		StringBuilder sb = new StringBuilder("#!/bin/bash\n");
+		for (int i = 0; i < 3; i++) {
+			String tag = changeTag && i == update ? "dxx" : "d" + i;
+			String version = i + "." + i + "." + (i == update ? i + 1 : i);
+			sb.append("echo \"this is <" + tag + ">" + version + "</" + tag + ">\"\n");
+		}
+		return sb.append("echo \"ending\"\nsleep 5\n").toString();
+	}
+
+	private void writeFile(File dir, String content) throws IOException {
+		FileUtils.writeStringToFile(new File(dir, FILE_NAME), content, StandardCharsets.UTF_8);
+	}
+
+	// Merges all updates into a new branch, pushes it and returns the merge results and file content at origin
+	private String runMerges(boolean inCore) throws IOException {
+		return runMerges(inCore, gitLocal -> gitLocal);
+	}
+	// Additional options of the local repo are set by the setup function
+	private String runMerges(boolean inCore, UnaryOperator<GitLocal> setup) throws IOException {
+		StringBuilder results = new StringBuilder();
+		try (GitLocal gitLocal = new GitLocal("target", new File(ORIGIN_ROOT).getAbsolutePath(), "", "", "")) {
+			setup.apply(gitLocal.setInCore(inCore).setCleanOnClose(true));
+			gitLocal.cloneRepository(repoName, "main", shas).deepenToMergeBases(shas).checkoutSparse(shas);
+			if (!inCore) {
+				localRefs = getLocalRefs(gitLocal);
+				workTreeFiles = Arrays.toString(new File(gitLocal.getWorkTree()).list((dir, name) -> !".git".equals(name)));
+			}
+			String branch = "combined-" + (inCore ? "incore" : "worktree");
+			gitLocal.checkout(branch, true);
+			for (int i = 0; i < shas.size(); i++)
+				results.append(gitLocal.merge(shas.get(i), "Update " + i, new ConflictResolver()) ? "merged " : "excluded ");
+			gitLocal.commit("Combined updates");
+			gitLocal.push(false);
+			return results.toString().trim() + "\n" + readOriginFile(branch);
+		}
+	}
+
+	// Merges all updates at once using a tree merge, returns the dropped updates (index and level) and file content
+	private String runTreeMerges(boolean inCore) throws IOException {
+		try (GitLocal gitLocal = new GitLocal("target", new File(ORIGIN_ROOT).getAbsolutePath(), "", "", "")) {
+			gitLocal.setInCore(inCore).setTreeMerge(true).setCleanOnClose(true).cloneRepository(repoName);
+			String branch = "combined-tree-" + (inCore ? "incore" : "worktree");
+			gitLocal.checkout(branch, true);
+			List<String> titles = new ArrayList<>();
+			for (int i = 0; i < shas.size(); i++)
+				titles.add("Update " + i);
+			Map<String, Integer> dropped = gitLocal.mergeTree(shas, titles, new ConflictResolver());
+			Map<Integer, Integer> droppedIndexes = new TreeMap<>();
+			for (Map.Entry<String, Integer> entry : dropped.entrySet())
+				droppedIndexes.put(shas.indexOf(entry.getKey()), entry.getValue());
+			gitLocal.commit("Combined updates");
+			gitLocal.push(false);
+			return "dropped " + droppedIndexes + "\n" + readOriginFile(branch);
+		}
+	}
+
+	// Merges all updates in a single commit, returns the merge results, number of parents and file content at origin
+	private String runSingleMerges(boolean inCore, boolean squash) throws IOException {
+		try (GitLocal gitLocal = new GitLocal("target", new File(ORIGIN_ROOT).getAbsolutePath(), "", "", "")) {
+			gitLocal.setInCore(inCore).setSingleCommit(true).setSquash(squash).setCleanOnClose(true)
+					.cloneRepository(repoName);
+			String branch = "combined-single-" + (inCore ? "incore" : "worktree") + (squash ? "-squash" : "");
+			gitLocal.checkout(branch, true);
+			StringBuilder results = new StringBuilder();
+			for (boolean success : gitLocal.mergeSingle(shas, "Combined updates", new ConflictResolver()))
+				results.append(success ? "merged " : "excluded ");
+			gitLocal.push(false);
+			String content = readOriginFile(branch);
+			if (!inCore) // work tree must match the combined commit
+				assertEquals(content, FileUtils.readFileToString(new File(gitLocal.getWorkTree(), FILE_NAME),
+						StandardCharsets.UTF_8));
+			return results.toString().trim() + ", parents: " + getParentCount(branch) + "\n" + content;
+		}
+	}
+
+	// Merges all updates using the api (without clone) and returns the merge results and file content at origin
+	private String runMergesByApi(int maxFiles) throws IOException {
+		StringBuilder results = new StringBuilder();
+		IGitClient client = new LocalGitClient(Paths.get(ORIGIN_ROOT, repoName).toFile());
+		ApiMerger merger = new ApiMerger(client, repoName, "main").setMaxFiles(maxFiles);
+		for (int i = 0; i < shas.size(); i++) {
+			Boolean success = merger.merge(shas.get(i), new ConflictResolver());
+			if (success == null)
+				return "can't merge using the api";
+			results.append(success ? "merged " : "excluded ");
+		}
+		merger.commit("combined-api", "Combined updates");
+		return results.toString().trim() + "\n" + readOriginFile("combined-api");
+	}
+
+	private String getLocalRefs(GitLocal gitLocal) throws IOException {
+		try (Git git = Git.open(new File(gitLocal.getWorkTree()))) {
+			return git.getRepository().getRefDatabase().getRefs().stream().map(ref -> ref.getName()).sorted().toList()
+					.toString();
+		}
+	}
+
+	private String readOriginFile(String branch) throws IOException {
+		return readOriginFile(branch, FILE_NAME);
+	}
+	private String readOriginFile(String branch, String fileName) throws IOException {
+		try (Repository repo = Git.open(Paths.get(ORIGIN_ROOT, repoName).toFile()).getRepository();
+				RevWalk walk = new RevWalk(repo)) {
+			ObjectId commit = repo.resolve("refs/heads/" + branch);
+			try (TreeWalk tree = TreeWalk.forPath(repo, fileName, walk.parseCommit(commit).getTree())) {
+				return new String(repo.open(tree.getObjectId(0)).getBytes(), StandardCharsets.UTF_8);
+			}
+		}
+	}
+
+	@Test
+	public void testMergeResolvedConflict() throws IOException, GitAPIException {
+		setUpOrigin(false);
+		String expected = "merged merged merged\n" + getContent(-1, false)
+				.replace("0.0.0", "0.0.1").replace("1.1.1", "1.1.2").replace("2.2.2", "2.2.3");
+		assertEquals(expected, runMerges(false));
+		assertEquals(expected, runMerges(true));
+	}
+
+	@Test
+	public void testMergeUnresolvedConflict() throws IOException, GitAPIException {
+		setUpOrigin(true);
+		String expected = "merged excluded merged\n" + getContent(-1, false)
+				.replace("0.0.0", "0.0.1").replace("2.2.2", "2.2.3");
+		assertEquals(expected, runMerges(false));
+		assertEquals(expected, runMerges(true));
+	}
+
+	@Test
+	public void testMergeFromMirrorCache() throws IOException, GitAPIException {
+		setUpOrigin(false);
+		MirrorCache cache = new MirrorCache(MIRROR_ROOT + "/" + repoName, 0);
+		String expected = "merged merged merged\n" + getContent(-1, false)
+				.replace("0.0.0", "0.0.1").replace("1.1.1", "1.1.2").replace("2.2.2", "2.2.3");
+		// first run creates the mirror, next run fetches it (including the branch pushed by the first run)
+		assertEquals(expected, runMerges(false, gitLocal -> gitLocal.setMirrorCache(cache)));
+		assertEquals(expected, runMerges(true, gitLocal -> gitLocal.setMirrorCache(cache)));
+		assertEquals(1, new File(MIRROR_ROOT, repoName).list((dir, name) -> name.endsWith(".git")).length);
+	}
+
+	@Test
+	public void testMergeFromShallowClone() throws IOException, GitAPIException {
+		setUpOrigin(false, 5); // merge bases are not in the first clone, needs deepen
+		String expected = "merged merged merged\n" + getContent(-1, false)
+				.replace("0.0.0", "0.0.1").replace("1.1.1", "1.1.2").replace("2.2.2", "2.2.3");
+		assertEquals(expected, runMerges(false, gitLocal -> gitLocal.setCloneDepth(1)));
+		assertEquals(expected, runMerges(true, gitLocal -> gitLocal.setCloneDepth(1)));
+	}
+
+	@Test
+	public void testMergeFromTargetedFetch() throws IOException, GitAPIException {
+		setUpOrigin(false, 5);
+		String expected = "merged merged merged\n" + getContent(-1, false)
+				.replace("0.0.0", "0.0.1").replace("1.1.1", "1.1.2").replace("2.2.2", "2.2.3");
+		assertEquals(expected, runMerges(false, gitLocal -> gitLocal.setTargetedFetch(true)));
+		// only main and the updates, not the update branches
+		String expectedRefs = "[HEAD, refs/fetched/" + String.join(", refs/fetched/", shas.stream().sorted().toList())
+				+ ", refs/heads/main, refs/remotes/origin/main]";
+		assertEquals(expectedRefs, localRefs);
+		assertEquals(expected, runMerges(true, gitLocal -> gitLocal.setTargetedFetch(true)));
+		// combined with shallow clone (new origin), deepens fetching the same refs
+		setUpOrigin(false, 5);
+		assertEquals(expected, runMerges(false, gitLocal -> gitLocal.setTargetedFetch(true).setCloneDepth(1)));
+		assertEquals(expected, runMerges(true, gitLocal -> gitLocal.setTargetedFetch(true).setCloneDepth(1)));
+	}
+
+	@Test
+	public void testMergeFromSparseCheckout() throws IOException, GitAPIException {
+		setUpOrigin(false, 1); // other.txt is not changed by the updates
+		String expected = "merged merged merged\n" + getContent(-1, false)
+				.replace("0.0.0", "0.0.1").replace("1.1.1", "1.1.2").replace("2.2.2", "2.2.3");
+		assertEquals(expected, runMerges(false, gitLocal -> gitLocal.setSparseCheckout(true)));
+		assertEquals("[" + FILE_NAME + "]", workTreeFiles);
+		// files out of the work tree must remain in the combined branch
+		assertEquals("change 0", readOriginFile("combined-worktree", "other.txt"));
+		// in-core does not use sparse checkout (no work tree)
+		assertEquals(expected, runMerges(true, gitLocal -> gitLocal.setSparseCheckout(true)));
+	}
+
+	@Test
+	public void testMergeUnresolvedConflictFromSparseCheckout() throws IOException, GitAPIException {
+		setUpOrigin(true, 1);
+		String expected = "merged excluded merged\n" + getContent(-1, false)
+				.replace("0.0.0", "0.0.1").replace("2.2.2", "2.2.3");
+		// reset after the excluded update keeps the sparse work tree
+		assertEquals(expected, runMerges(false, gitLocal -> gitLocal.setSparseCheckout(true)));
+		assertEquals("change 0", readOriginFile("combined-worktree", "other.txt"));
+	}
+
+	@Test
+	public void testMergeAddedFileAfterUnresolvedConflictFromSparseCheckout() throws IOException, GitAPIException {
+		// the excluded update and the next one add the same file, that must not be left untracked by the reset
+		setUpOrigin(true, 1);
+		File dir = Paths.get(ORIGIN_ROOT, repoName).toFile();
+		try (Git git = Git.open(dir)) {
+			for (int i = 1; i < 3; i++) {
+				git.checkout().setName("update-" + i).call();
+				FileUtils.writeStringToFile(new File(dir, "added.txt"), "added", StandardCharsets.UTF_8);
+				git.add().addFilepattern(".").call();
+				shas.set(i, git.commit().setMessage("Add file " + i).call().getName());
+			}
+			git.checkout().setName("main").call();
+		}
+		String expected = "merged excluded merged\n" + getContent(-1, false)
+				.replace("0.0.0", "0.0.1").replace("2.2.2", "2.2.3");
+		assertEquals(expected, runMerges(false, gitLocal -> gitLocal.setSparseCheckout(true)));
+		assertEquals("added", readOriginFile("combined-worktree", "added.txt"));
+	}
+
+	@Test
+	public void testMergeByApi() throws IOException, GitAPIException {
+		setUpOrigin(false, 1);
+		// the file content is merged in memory keeping the last line terminator
+		String expected = "merged merged merged\n" + getContent(-1, false)
+				.replace("0.0.0", "0.0.1").replace("1.1.1", "1.1.2").replace("2.2.2", "2.2.3");
+		assertEquals(expected, runMergesByApi(20));
+		assertEquals("change 0", readOriginFile("combined-api", "other.txt"));
+	}
+
+	@Test
+	public void testMergeByApiNewFile() throws IOException, GitAPIException {
+		// the last update creates a file that does not exist in the branch
+		setUpOriginDisjoint();
+		ApiMerger merger = new ApiMerger(new LocalGitClient(Paths.get(ORIGIN_ROOT, repoName).toFile()), repoName, "main");
+		for (String sha : shas)
+			assertTrue(merger.merge(sha, new ConflictResolver()));
+		merger.commit("combined-api", "Combined updates");
+		assertEquals("update 1", readOriginFile("combined-api", "file-1.txt"));
+		assertEquals("update 2", readOriginFile("combined-api", "file-2.txt"));
+	}
+
+	@Test
+	public void testMergeByApiUnresolvedConflict() throws IOException, GitAPIException {
+		setUpOrigin(true, 1);
+		String expected = "merged excluded merged\n" + getContent(-1, false)
+				.replace("0.0.0", "0.0.1").replace("2.2.2", "2.2.3");
+		assertEquals(expected, runMergesByApi(20));
+	}
+
+	@Test
+	public void testMergeByApiTooManyFiles() throws IOException, GitAPIException {
+		setUpOrigin(false);
+		assertEquals("can't merge using the api", runMergesByApi(0));
+	}
+
+	// Trial merges of all updates with the combined branch after merging the first update
+	private String runTrialMerges(boolean inCore) {
+		try (GitLocal gitLocal = new GitLocal("target", new File(ORIGIN_ROOT).getAbsolutePath(), "", "", "")) {
+			gitLocal.setInCore(inCore).setCleanOnClose(true).cloneRepository(repoName);
+			gitLocal.checkout("combined", true);
+			gitLocal.merge(shas.get(0), "Update 0", new ConflictResolver());
+			return gitLocal.tryMerges(shas, new ConflictResolver()).toString();
+		}
+	}
+
+	@Test
+	public void testTrialMerges() throws IOException, GitAPIException {
+		// update 1 changes the line adjacent to update 0 (resolvable), update 2 is not adjacent
+		setUpOrigin(false);
+		assertEquals("[CLEAN, RESOLVABLE, CLEAN]", runTrialMerges(false));
+		assertEquals("[CLEAN, RESOLVABLE, CLEAN]", runTrialMerges(true));
+		setUpOrigin(true);
+		assertEquals("[CLEAN, CONFLICTING, CLEAN]", runTrialMerges(false));
+		assertEquals("[CLEAN, CONFLICTING, CLEAN]", runTrialMerges(true));
+	}
+
+	@Test
+	public void testTrialMergesReadOnlyResolutionCache() throws IOException, GitAPIException {
+		// trial merges do not record resolutions nor count hits, the merge that follows does
+		setUpOrigin(false);
+		ResolutionCache cache = new ResolutionCache(null, 10);
+		try (GitLocal gitLocal = new GitLocal("target", new File(ORIGIN_ROOT).getAbsolutePath(), "", "", "")) {
+			gitLocal.setResolutionCache(cache).setCleanOnClose(true).cloneRepository(repoName);
+			gitLocal.checkout("combined", true);
+			gitLocal.merge(shas.get(0), "Update 0", new ConflictResolver());
+			assertEquals("[CLEAN, RESOLVABLE, CLEAN]", gitLocal.tryMerges(shas, new ConflictResolver()).toString());
+			assertEquals("entries: 0, hits: 0, misses: 0, evictions: 0", cache.toString());
+			gitLocal.merge(shas.get(1), "Update 1", new ConflictResolver());
+			assertEquals("entries: 1, hits: 0, misses: 1, evictions: 0", cache.toString());
+		}
+	}
+
+	@Test
+	public void testTrialMergeCrissCross() throws IOException, GitAPIException {
+		// main and the update have merged each other (two merge bases), must be merged as git merge (recursive)
+		setUpOriginDisjoint();
+		File dir = Paths.get(ORIGIN_ROOT, repoName).toFile();
+		try (Git git = Git.open(dir)) {
+			ObjectId main = git.getRepository().resolve("main");
+			ObjectId update = git.getRepository().resolve("update-0");
+			git.merge().include(update).setMessage("Merge update into main").call();
+			git.checkout().setName("update-0").call();
+			git.merge().include(main).setMessage("Merge main into update").call();
+			FileUtils.writeStringToFile(new File(dir, "file-1.txt"), "update 0", StandardCharsets.UTF_8);
+			git.add().addFilepattern(".").call();
+			shas = List.of(git.commit().setMessage("Update after merge").call().getName());
+			git.checkout().setName("main").call();
+		}
+		for (boolean inCore : new boolean[] { false, true })
+			try (GitLocal gitLocal = new GitLocal("target", new File(ORIGIN_ROOT).getAbsolutePath(), "", "", "")) {
+				gitLocal.setInCore(inCore).setCleanOnClose(true).cloneRepository(repoName);
+				assertEquals("[CLEAN]", gitLocal.tryMerges(shas, new ConflictResolver()).toString());
+			}
+	}
+
+	@Test
+	public void testTreeMergeResolvedConflict() throws IOException, GitAPIException {
+		setUpOrigin(false, 1);
+		String expected = "dropped {}\n" + getContent(-1, false)
+				.replace("0.0.0", "0.0.1").replace("1.1.1", "1.1.2").replace("2.2.2", "2.2.3");
+		assertEquals(expected, runTreeMerges(false));
+		assertEquals(expected, runTreeMerges(true));
+	}
+
+	@Test
+	public void testTreeMergeUnresolvedConflict() throws IOException, GitAPIException {
+		// updates 1 and 2 are merged at level 1, update 2 is dropped (conflicts with update 1, the left node).
+		// Update 1 is dropped at level 2 because of the conflict with update 0
+		setUpOrigin(true);
+		String expected = "dropped {1=2, 2=1}\n" + getContent(-1, false).replace("0.0.0", "0.0.1");
+		assertEquals(expected, runTreeMerges(false));
+		assertEquals(expected, runTreeMerges(true));
+	}
+
+	@Test
+	public void testMergeDisjointChanges() throws IOException, GitAPIException {
+		setUpOriginDisjoint();
+		assertEquals("merged, parents: 4, update 0, update 1, update 2, change, worktree: update 0",
+				runDisjointMerges(false, "file-0.txt", "file-1.txt", "file-2.txt", "other.txt"));
+		assertEquals("merged, parents: 4, update 0, update 1, update 2, change",
+				runDisjointMerges(true, "file-0.txt", "file-1.txt", "file-2.txt", "other.txt"));
+	}
+
+	@Test
+	public void testMergeOverlappingChanges() throws IOException, GitAPIException {
+		// all updates change the same file, the branch is not changed
+		setUpOrigin(false);
+		String expected = "not merged, parents: 0, " + getContent(-1, false);
+		assertEquals(expected + ", worktree: " + getContent(-1, false), runDisjointMerges(false, FILE_NAME));
+		assertEquals(expected, runDisjointMerges(true, FILE_NAME));
+	}
+
+	@Test
+	public void testMergeOverlappingFileAndDirectory() throws IOException, GitAPIException {
+		// an update adds a file and other adds a file in a folder with the same name (different paths that collide)
+		setUpOriginDisjoint();
+		File dir = Paths.get(ORIGIN_ROOT, repoName).toFile();
+		shas = new ArrayList<>();
+		try (Git git = Git.open(dir)) {
+			for (String fileName : new String[] { "new", "new/file.txt" }) {
+				git.checkout().setName("main").call();
+				git.checkout().setName("update-" + fileName.replace("/", "-")).setCreateBranch(true).call();
+				FileUtils.writeStringToFile(new File(dir, fileName), "update", StandardCharsets.UTF_8);
+				git.add().addFilepattern(".").call();
+				shas.add(git.commit().setMessage("Update " + fileName).call().getName());
+			}
+			git.checkout().setName("main").call();
+		}
+		String expected = "not merged, parents: 1, initial"; // the branch is not changed
+		assertEquals(expected + ", worktree: initial", runDisjointMerges(false, "file-0.txt"));
+		assertEquals(expected, runDisjointMerges(true, "file-0.txt"));
+	}
+
+	@Test
+	public void testMergeSingleCommit() throws IOException, GitAPIException {
+		setUpOrigin(false, 1);
+		String content = getContent(-1, false)
+				.replace("0.0.0", "0.0.1").replace("1.1.1", "1.1.2").replace("2.2.2", "2.2.3");
+		assertEquals("merged merged merged, parents: 4\n" + content, runSingleMerges(false, false));
+		assertEquals("merged merged merged, parents: 4\n" + content, runSingleMerges(true, false));
+		assertEquals("merged merged merged, parents: 1\n" + content, runSingleMerges(true, true));
+		assertEquals("change 0", readOriginFile("combined-single-incore-squash", "other.txt"));
+	}
+
+	@Test
+	public void testMergeSingleCommitUnresolvedConflict() throws IOException, GitAPIException {
+		setUpOrigin(true);
+		String content = getContent(-1, false).replace("0.0.0", "0.0.1").replace("2.2.2", "2.2.3");
+		assertEquals("merged excluded merged, parents: 3\n" + content, runSingleMerges(false, false));
+		assertEquals("merged excluded merged, parents: 1\n" + content, runSingleMerges(false, true));
+	}
+
+	@Test
+	public void testCommitIndicatedFiles() throws IOException, GitAPIException {
+		setUpOriginDisjoint();
+		try (GitLocal gitLocal = new GitLocal("target", new File(ORIGIN_ROOT).getAbsolutePath(), "", "", "")) {
+			gitLocal.setCleanOnClose(true).cloneRepository(repoName).checkout("combined-commit", true);
+			File workTree = new File(gitLocal.getWorkTree());
+			FileUtils.writeStringToFile(new File(workTree, "file-0.txt"), "modified", StandardCharsets.UTF_8);
+			FileUtils.writeStringToFile(new File(workTree, "file-1.txt"), "not committed", StandardCharsets.UTF_8);
+			FileUtils.writeStringToFile(new File(workTree, "new/file.txt"), "new", StandardCharsets.UTF_8);
+			FileUtils.delete(new File(workTree, "other.txt"));
+			gitLocal.commit("Changed files", "file-0.txt", "new/file.txt", "other.txt").push(false);
+			// empty commit
+			gitLocal.commit("Title").push(false);
+		}
+		assertEquals("modified", readOriginFile("combined-commit", "file-0.txt"));
+		assertEquals("initial", readOriginFile("combined-commit", "file-1.txt"));
+		assertEquals("new", readOriginFile("combined-commit", "new/file.txt"));
+		try (Repository repo = Git.open(Paths.get(ORIGIN_ROOT, repoName).toFile()).getRepository();
+				RevWalk walk = new RevWalk(repo)) {
+			RevCommit title = walk.parseCommit(repo.resolve("refs/heads/combined-commit"));
+			assertEquals("Title", title.getFullMessage());
+			assertEquals(walk.parseCommit(title.getParent(0)).getTree(), title.getTree());
+			assertNull(TreeWalk.forPath(repo, "other.txt", title.getTree()));
+		}
+	}
+
+	// Pushes a combined branch deleting the update branches and a non existing branch, returns the rejected
+	// deletions and the branches at origin
+	private String runPushAndDelete(boolean inCore) throws IOException {
+		try (GitLocal gitLocal = new GitLocal("target", new File(ORIGIN_ROOT).getAbsolutePath(), "", "", "")) {
+			gitLocal.setInCore(inCore).setCleanOnClose(true).cloneRepository(repoName).checkout("combined", true);
+			gitLocal.commit("Combined updates");
+			List<String> rejected = gitLocal.pushAndDelete(List.of("update-0", "update-2", "not-exists"));
+			try (Git git = Git.open(Paths.get(ORIGIN_ROOT, repoName).toFile())) {
+				return "rejected: " + rejected + ", origin: " + git.getRepository().getRefDatabase()
+						.getRefsByPrefix("refs/heads/").stream().map(ref -> ref.getName()).sorted().toList();
+			}
+		}
+	}
+
+	@Test
+	public void testPushAndDeleteBranches() throws IOException, GitAPIException {
+		setUpOrigin(false);
+		assertEquals("rejected: [], origin: [refs/heads/combined, refs/heads/main, refs/heads/update-1]",
+				runPushAndDelete(false));
+		setUpOrigin(false);
+		assertEquals("rejected: [], origin: [refs/heads/combined, refs/heads/main, refs/heads/update-1]",
+				runPushAndDelete(true));
+	}
+
+	@Test
+	public void testRestoreDeletedBranches() throws IOException, GitAPIException {
+		// branches deleted by the push are restored at their commits (e.g. if the combined PR is not created)
+		setUpOrigin(false);
+		String sha;
+		try (Repository repo = Git.open(Paths.get(ORIGIN_ROOT, repoName).toFile()).getRepository()) {
+			sha = repo.resolve("refs/heads/update-0").name();
+		}
+		try (GitLocal gitLocal = new GitLocal("target", new File(ORIGIN_ROOT).getAbsolutePath(), "", "", "")) {
+			gitLocal.setCleanOnClose(true).cloneRepository(repoName).checkout("combined", true);
+			gitLocal.commit("Combined updates");
+			gitLocal.pushAndDelete(List.of("update-0"));
+			assertEquals("[]", gitLocal.restoreBranches(Map.of("update-0", sha)).toString());
+		}
+		try (Repository repo = Git.open(Paths.get(ORIGIN_ROOT, repoName).toFile()).getRepository()) {
+			assertEquals(sha, repo.resolve("refs/heads/update-0").name());
+		}
+	}
+
+	@Test
+	public void testPushAndDeleteBranchesRejected() throws IOException, GitAPIException {
+		// atomic push fails, the combined branch is pushed again and the deletions are rejected
+		setUpOrigin(false);
+		try (Git git = Git.open(Paths.get(ORIGIN_ROOT, repoName).toFile())) {
+			git.getRepository().getConfig().setBoolean("receive", null, "denyDeletes", true);
+			git.getRepository().getConfig().save();
+		}
+		assertEquals("rejected: [update-0, update-2], origin: [refs/heads/combined, refs/heads/main, "
+				+ "refs/heads/update-0, refs/heads/update-1, refs/heads/update-2]", runPushAndDelete(false));
+	}
+
+	@Test
+	public void testMirrorCacheEviction() throws IOException, GitAPIException {
+		setUpOrigin(false);
+		String url = new File(ORIGIN_ROOT, repoName).getAbsolutePath();
+		MirrorCache cache = new MirrorCache(MIRROR_ROOT + "/" + repoName, 1); // any mirror exceeds the max size
+		String mirror1 = cache.acquire(url, null);
+		assertTrue("Mirror in use can't be evicted", new File(mirror1).exists());
+		try (Git git = Git.open(new File(mirror1))) { // borrowed objects can't be pruned
+			assertFalse(git.getRepository().getConfig().getBoolean("fetch", "autogc", true));
+			assertEquals(0, git.getRepository().getConfig().getInt("gc", "auto", -1));
+		}
+		new MirrorCache(MIRROR_ROOT + "/" + repoName, 1).evict(); // as other run sharing the cache
+		assertTrue("Mirror in use can't be evicted by other cache", new File(mirror1).exists());
+		cache.release(url);
+		cache.evict();
+		assertFalse("Mirror not in use must be evicted", new File(mirror1).exists());
+		// after eviction the mirror is created again
+		String mirror2 = cache.acquire(url, null);
+		assertEquals(mirror1, mirror2);
+		assertTrue(new File(mirror2, "objects").exists());
+		cache.release(url);
+	}
+
+}
@@ -0,0 +1,50 @@
+package giis.dashgit.updater.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import giis.qabot.ci.clients.GithubGraphqlClient;
+
+/**
+ * Escape of the values included as strings in the graphql mutations
+ */
+public class TestUtGithubGraphql {
+
+	private GithubGraphqlClient graphql = new GithubGraphqlClient("https://api.github.com", "");
+
+	private String createPullRequest(String title) {
+		return graphql.getCreatePullRequestMutation("repo-id", "main", "update", title, "body");
+	}
+
+	@Test
+	public void testStringQuotesAndLineBreaks() {
+		// line breaks are escaped, the mutation does not contain line breaks inside the values
+		String mutation = createPullRequest("Update \"\"\"quoted\"\"\" \"x\"\n\n  line\r\t");
+		assertTrue(mutation, mutation.contains("title: \"Update \\\"\\\"\\\"quoted\\\"\\\"\\\" \\\"x\\\"\\n\\n  line\\r\\t\","));
+		assertTrue(mutation, mutation.contains("body: \"body\" })"));
+	}
+
+	@Test
+	public void testStringEndingInBackslash() {
+		// a backslash at the end must not escape the closing quote
+		String mutation = createPullRequest("Update c:\\dir\\");
+		assertTrue(mutation, mutation.contains("title: \"Update c:\\\\dir\\\\\","));
+		mutation = createPullRequest("Update \\\"");
+		assertTrue(mutation, mutation.contains("title: \"Update \\\\\\\"\","));
+	}
+
+	@Test
+	public void testStringInCommentsAndAutoMerge() {
+		String mutation = graphql.getAddCommentsMutation(List.of("pr0"), List.of("Comment\n\\"));
+		assertTrue(mutation, mutation.contains("body: \"Comment\\n\\\\\" })"));
+		mutation = graphql.getAutoMergeQuery("pr0", "Title \"x\"", "Body\n\u0001");
+		assertTrue(mutation, mutation.contains("commitHeadline: \"Title \\\"x\\\"\","));
+		assertTrue(mutation, mutation.contains("commitBody: \"Body\\n\\u0001\" })"));
+		assertFalse(mutation, mutation.contains("\"\"\""));
+	}
+
+}
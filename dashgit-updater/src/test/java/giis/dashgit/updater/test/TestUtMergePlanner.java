@@ -0,0 +1,57 @@
+package giis.dashgit.updater.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import giis.dashgit.updater.MergePlanner;
+
+/**
+ * Order to merge the updates: updates that conflict with many others are deferred
+ * so that the combined branch includes as many updates as possible
+ */
+public class TestUtMergePlanner {
+
+	// Regions changed by an update, given as file, begin, end, file, begin, end...
+	private Map<String, List<int[]>> update(Object... regions) {
+		Map<String, List<int[]>> changes = new HashMap<>();
+		for (int i = 0; i < regions.length; i += 3)
+			changes.computeIfAbsent((String) regions[i], key -> new ArrayList<>())
+					.add(new int[] { (Integer) regions[i + 1], (Integer) regions[i + 2] });
+		return changes;
+	}
+
+	private String plan(List<Map<String, List<int[]>>> changes) {
+		return new MergePlanner().plan(changes).toString();
+	}
+
+	@Test
+	public void testDisjointUpdatesKeepOrder() {
+		assertEquals("[0, 1, 2]", plan(List.of(update("pom.xml", 10, 11), update("pom.xml", 20, 21),
+				update("package.json", 10, 11))));
+		assertEquals("[]", plan(List.of()));
+	}
+
+	@Test
+	public void testUpdateConflictingWithManyIsDeferred() {
+		// first update changes a region that overlaps with the second and third, that do not conflict between them:
+		// merging the first would exclude the others
+		assertEquals("[1, 2, 3, 0]", plan(List.of(update("pom.xml", 10, 30), update("pom.xml", 12, 13),
+				update("pom.xml", 25, 26), update())));
+	}
+
+	@Test
+	public void testAdjacentRegionsConflict() {
+		// adjacent regions produce a conflict in git merge, the first one with less conflicts is selected
+		assertEquals("[0, 1]", plan(List.of(update("pom.xml", 10, 11), update("pom.xml", 11, 12))));
+		// second is adjacent to the others, that are not adjacent between them
+		assertEquals("[0, 2, 1]", plan(List.of(update("pom.xml", 10, 11, "a.txt", 0, 1),
+				update("a.txt", 1, 2), update("a.txt", 2, 3, "pom.xml", 20, 21))));
+	}
+
+}
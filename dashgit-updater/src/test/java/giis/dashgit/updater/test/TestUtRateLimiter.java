@@ -0,0 +1,105 @@
+package giis.dashgit.updater.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
+import org.junit.Test;
+
+import giis.qabot.core.clients.HttpTransport;
+import giis.qabot.core.clients.RateLimiter;
+
+/**
+ * Pacing of requests by the rate limiter: token bucket for write requests
+ * and waits given by the rate limit headers of the responses
+ */
+public class TestUtRateLimiter {
+
+	// Elapsed millis to acquire a number of requests
+	private long acquire(RateLimiter limiter, boolean write, int count) {
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < count; i++)
+			limiter.acquire(write);
+		return System.currentTimeMillis() - start;
+	}
+
+	private Map<String, String> headers(String... nameValues) {
+		Map<String, String> headers = new HashMap<>();
+		for (int i = 0; i < nameValues.length; i += 2)
+			headers.put(nameValues[i], nameValues[i + 1]);
+		return headers;
+	}
+
+	private String resetIn(long millis) {
+		return String.valueOf((System.currentTimeMillis() + millis) / 1000);
+	}
+
+	@Test
+	public void testWritesLimitedByTokenBucket() {
+		RateLimiter limiter = new RateLimiter(2, 10);
+		assertTrue(acquire(limiter, true, 2) < 50); // burst
+		long elapsed = acquire(limiter, true, 2); // waits one token (100ms) per request
+		assertTrue("elapsed: " + elapsed, elapsed >= 180);
+		assertTrue(acquire(limiter, false, 10) < 50); // reads are not limited
+	}
+
+	@Test
+	public void testRetryAfter() {
+		RateLimiter limiter = new RateLimiter(10, 10);
+		limiter.update(403, headers("Retry-After", "1")::get);
+		long elapsed = acquire(limiter, false, 1);
+		assertTrue("elapsed: " + elapsed, elapsed >= 900);
+	}
+
+	@Test
+	public void testNoRemainingRequestsGitlabHeaders() {
+		RateLimiter limiter = new RateLimiter(10, 10);
+		// does not pause while there are remaining requests
+		limiter.update(200, headers("RateLimit-Remaining", "1000", "RateLimit-Reset", resetIn(2000))::get);
+		assertTrue(acquire(limiter, false, 1) < 50);
+		limiter.update(200, headers("RateLimit-Remaining", "0", "RateLimit-Reset", resetIn(2000))::get);
+		long elapsed = acquire(limiter, false, 1);
+		assertTrue("elapsed: " + elapsed, elapsed >= 900);
+	}
+
+	@Test
+	public void testFewRemainingRequestsAreSpreadGithubHeaders() {
+		RateLimiter limiter = new RateLimiter(10, 10);
+		acquire(limiter, false, 1);
+		limiter.update(200, headers("X-RateLimit-Remaining", "4", "X-RateLimit-Reset", resetIn(3000))::get);
+		long elapsed = acquire(limiter, false, 2); // at least 2 intervals of (2000..3000)/4 ms
+		assertTrue("elapsed: " + elapsed, elapsed >= 900);
+	}
+
+	private BasicClassicHttpRequest request(String method, String path, String body) {
+		BasicClassicHttpRequest request = new BasicClassicHttpRequest(method, path);
+		if (body != null)
+			request.setEntity(new StringEntity(body));
+		return request;
+	}
+
+	@Test
+	public void testGraphqlQueriesAreNotWrites() {
+		assertFalse(HttpTransport.isWrite(request("GET", "/repos/owner/repo", null)));
+		assertTrue(HttpTransport.isWrite(request("POST", "/repos/owner/repo/issues/1/comments", "{}")));
+		assertFalse(HttpTransport.isWrite(request("POST", "/graphql", "{\"query\":\"{\\n  viewer { login }\\n}\"}")));
+		assertFalse(HttpTransport.isWrite(request("POST", "/graphql", "{\"query\":\"query Q { viewer { login } }\"}")));
+		assertTrue(HttpTransport.isWrite(request("POST", "/graphql", "{\"query\":\" mutation AddComments { }\"}")));
+		assertTrue(HttpTransport.isWrite(request("POST", "/graphql", "not json")));
+	}
+
+	@Test
+	public void testLimiterSharedByProvider() {
+		// clients that do not use the transport (gitlab4j) take the limiter of the provider
+		RateLimiter limiter = HttpTransport.getRateLimiter("https://gitlab.example.com/api");
+		assertSame(limiter, HttpTransport.getRateLimiter("https://gitlab.example.com"));
+		assertNotSame(limiter, HttpTransport.getRateLimiter("https://gitlab.example.com:8443"));
+	}
+
+}